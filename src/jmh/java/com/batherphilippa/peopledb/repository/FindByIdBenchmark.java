@@ -0,0 +1,53 @@
+package com.batherphilippa.peopledb.repository;
+
+import com.batherphilippa.peopledb.domain.Person;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * findById of a random person, with no identity map or entity cache in front of it, so every call reads the database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FindByIdBenchmark {
+
+    // how the addresses and spouse are read; children are always read by a batch query of their own
+    @Param({"JOIN", "SELECT"})
+    public FetchStrategy relationStrategy;
+
+    @Setup(Level.Trial)
+    public void setUp(PeopleDatabase db) {
+        for (PersonRepository.Relation relation : PersonRepository.Relation.values()) {
+            if (relation != PersonRepository.Relation.CHILDREN) {
+                db.peopleRepo.setFetchStrategy(relation, relationStrategy);
+            }
+        }
+    }
+
+    @Benchmark
+    public Optional<Person> findByIdWithRelations(PeopleDatabase db) {
+        return db.peopleRepo.findById(db.randomIdWithRelations());
+    }
+
+    @Benchmark
+    public Optional<Person> findByIdWithoutRelations(PeopleDatabase db) {
+        return db.peopleRepo.findById(db.randomIdWithoutRelations());
+    }
+}
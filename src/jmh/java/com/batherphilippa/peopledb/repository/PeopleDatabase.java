@@ -0,0 +1,101 @@
+package com.batherphilippa.peopledb.repository;
+
+import com.batherphilippa.peopledb.domain.Address;
+import com.batherphilippa.peopledb.domain.Person;
+import com.batherphilippa.peopledb.domain.Region;
+import org.h2.jdbcx.JdbcDataSource;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A private in-memory database seeded with the given number of people: half have a home address, a business address
+ * and a spouse, and the other half none of these. Spouses are counted among the people.
+ */
+@State(Scope.Benchmark)
+public class PeopleDatabase {
+
+    @Param({"1000", "100000"})
+    public int people;
+
+    JdbcDataSource dataSource;
+    Connection connection;
+    PersonRepository peopleRepo;
+    long[] idsWithRelations;
+    long[] idsWithoutRelations;
+    // rows above it were written by a benchmark and are removed after each iteration
+    long lastSeededId;
+
+    @Setup(Level.Trial)
+    public void seed() throws SQLException {
+        dataSource = TestDatabase.create();
+        connection = dataSource.getConnection();
+        peopleRepo = new PersonRepository(connection);
+        int couples = people / 4;
+        List<Person> withRelations = new ArrayList<>(couples);
+        List<Person> withoutRelations = new ArrayList<>(people - 2 * couples);
+        for (int i = 0; i < couples; i++) {
+            Person person = newPerson(i);
+            person.setHomeAddress(newAddress(i, Region.SOUTH));
+            person.setBusinessAddress(newAddress(i, Region.NORTH));
+            person.setSpouse(newPerson(i));
+            withRelations.add(person);
+        }
+        for (int i = 2 * couples; i < people; i++) {
+            withoutRelations.add(newPerson(i));
+        }
+        idsWithRelations = peopleRepo.saveAll(withRelations).stream().mapToLong(Person::getId).toArray();
+        idsWithoutRelations = peopleRepo.saveAll(withoutRelations).stream().mapToLong(Person::getId).toArray();
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT MAX(ID) FROM PEOPLE")) {
+            resultSet.next();
+            lastSeededId = resultSet.getLong(1);
+        }
+    }
+
+    static Person newPerson(int i) {
+        Person person = new Person("First" + i, "Last" + i, ZonedDateTime.of(1980, 11, 15, 15, 15, 0, 0, ZoneId.of("-6")));
+        person.setSalary(BigDecimal.valueOf(20_000 + i % 50_000));
+        return person;
+    }
+
+    private static Address newAddress(int i, Region region) {
+        return new Address(null, i + " Hawthorn Close", null, "Chichester", "WS", "PO19 3DZ", "UK", "West Sussex", region);
+    }
+
+    long randomIdWithRelations() {
+        return idsWithRelations[ThreadLocalRandom.current().nextInt(idsWithRelations.length)];
+    }
+
+    long randomIdWithoutRelations() {
+        return idsWithoutRelations[ThreadLocalRandom.current().nextInt(idsWithoutRelations.length)];
+    }
+
+    // so every iteration starts from the same data volume
+    @TearDown(Level.Iteration)
+    public void removeWrittenRows() throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("DELETE FROM PEOPLE WHERE ID > " + lastSeededId);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdown() throws SQLException {
+        connection.close();
+        TestDatabase.shutdown(dataSource);
+    }
+}
@@ -0,0 +1,100 @@
+package com.batherphilippa.peopledb.repository;
+
+import com.batherphilippa.peopledb.domain.CrudOperation;
+import com.batherphilippa.peopledb.domain.Person;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of turning one row into a Person on its own, without the query: a compiled RowMapper reads rows of a
+ * result set H2 holds in memory. The flat layout is that of streamAll; the joined one that of findAllById, with
+ * the home and business addresses and spouse in the same row.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RowMappingBenchmark {
+
+    private static final int ROWS = 1_000;
+
+    private MappedRows flatRows;
+    private MappedRows joinedRows;
+
+    private static final class MappedRows {
+        private final PreparedStatement ps;
+        private final ResultSet resultSet;
+        private final RowMapper<Person> mapper;
+        private final int rowCount;
+        private int row;
+
+        MappedRows(PersonRepository peopleRepo, String sql, PreparedStatement ps) throws SQLException {
+            this.ps = ps;
+            this.resultSet = ps.executeQuery();
+            this.mapper = peopleRepo.rowMapper(sql, resultSet);
+            resultSet.last();
+            this.rowCount = resultSet.getRow();
+        }
+
+        Person mapNext() throws SQLException {
+            row = row == rowCount ? 1 : row + 1;
+            resultSet.absolute(row);
+            return mapper.mapRow(resultSet);
+        }
+
+        void close() throws SQLException {
+            resultSet.close();
+            ps.close();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp(PeopleDatabase db) throws SQLException {
+        String flatSql = EntityMetadata.of(PersonRepository.class).getSql(CrudOperation.STREAM_ALL).orElseThrow()
+                .replace(";", " FETCH FIRST " + ROWS + " ROWS ONLY;");
+        flatRows = new MappedRows(db.peopleRepo, flatSql, scrollable(db, flatSql));
+        String joinedSql = db.peopleRepo.getFindAllByIdSql();
+        PreparedStatement joinedPS = scrollable(db, joinedSql);
+        long[] ids = Arrays.copyOf(db.idsWithRelations, Math.min(ROWS, db.idsWithRelations.length));
+        joinedPS.setArray(1, db.connection.createArrayOf("BIGINT", Arrays.stream(ids).boxed().toArray()));
+        joinedRows = new MappedRows(db.peopleRepo, joinedSql, joinedPS);
+    }
+
+    private static PreparedStatement scrollable(PeopleDatabase db, String sql) throws SQLException {
+        return db.connection.prepareStatement(sql, ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        flatRows.close();
+        joinedRows.close();
+    }
+
+    @Benchmark
+    public Person mapFlatRow() throws SQLException {
+        return flatRows.mapNext();
+    }
+
+    @Benchmark
+    public Person mapJoinedRow() throws SQLException {
+        return joinedRows.mapNext();
+    }
+}
@@ -0,0 +1,53 @@
+package com.batherphilippa.peopledb.repository;
+
+import com.batherphilippa.peopledb.domain.Person;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One save per person against saveAll of a batch; both are reported per person saved.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SaveBenchmark {
+
+    private static final int BATCH = 100;
+
+    @Setup(Level.Trial)
+    public void setUp(PeopleDatabase db) {
+        db.peopleRepo.setBatchSize(BATCH);
+    }
+
+    @Benchmark
+    public Person save(PeopleDatabase db) {
+        return db.peopleRepo.save(PeopleDatabase.newPerson(0));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public List<Person> saveAll(PeopleDatabase db) {
+        List<Person> people = new ArrayList<>(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            people.add(PeopleDatabase.newPerson(i));
+        }
+        return db.peopleRepo.saveAll(people);
+    }
+}
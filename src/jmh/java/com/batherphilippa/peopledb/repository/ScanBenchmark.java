@@ -0,0 +1,52 @@
+package com.batherphilippa.peopledb.repository;
+
+import com.batherphilippa.peopledb.domain.Person;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Reads of the whole table: streamed as entities or as a narrow projection. findAll reads the first 20 rows only,
+ * as its SQL limits it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanBenchmark {
+
+    public record PersonSummary(long id, String lastName, BigDecimal salary) {}
+
+    @Benchmark
+    public List<Person> findAll(PeopleDatabase db) {
+        return db.peopleRepo.findAll();
+    }
+
+    @Benchmark
+    public void streamAll(PeopleDatabase db, Blackhole blackhole) {
+        try (Stream<Person> people = db.peopleRepo.streamAll()) {
+            people.forEach(blackhole::consume);
+        }
+    }
+
+    @Benchmark
+    public void streamAllProjected(PeopleDatabase db, Blackhole blackhole) {
+        try (Stream<PersonSummary> summaries = db.peopleRepo.streamAll(PersonSummary.class)) {
+            summaries.forEach(blackhole::consume);
+        }
+    }
+}
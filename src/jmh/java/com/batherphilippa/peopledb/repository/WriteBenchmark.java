@@ -0,0 +1,64 @@
+package com.batherphilippa.peopledb.repository;
+
+import com.batherphilippa.peopledb.domain.Person;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * updateById of a random person with a new salary, and deleteById of a person saved just before, untimed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteBenchmark {
+
+    private List<Person> people;
+
+    @State(Scope.Thread)
+    public static class SavedPerson {
+        Person person;
+
+        // per invocation, which JMH warns against for nanosecond operations; a delete is a database round trip
+        @Setup(Level.Invocation)
+        public void save(PeopleDatabase db) {
+            person = db.peopleRepo.save(PeopleDatabase.newPerson(0));
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp(PeopleDatabase db) {
+        // without relations, so only the PEOPLE row is written
+        people = db.peopleRepo.findAllById(List.of(db.idsWithoutRelations[0], db.idsWithoutRelations[1],
+                db.idsWithoutRelations[2], db.idsWithoutRelations[3]));
+    }
+
+    @Benchmark
+    public Person updateById(PeopleDatabase db) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Person person = people.get(random.nextInt(people.size()));
+        person.setSalary(BigDecimal.valueOf(random.nextInt(20_000, 70_000)));
+        return db.peopleRepo.updateById(person);
+    }
+
+    @Benchmark
+    public void deleteById(PeopleDatabase db, SavedPerson saved) {
+        db.peopleRepo.deleteById(saved.person);
+    }
+}
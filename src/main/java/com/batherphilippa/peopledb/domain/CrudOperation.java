@@ -2,9 +2,15 @@ package com.batherphilippa.peopledb.domain;
 
 public enum CrudOperation {
     SAVE,
+    SAVE_WITH_ID,
     UPDATE,
+    UPSERT,
     FIND_ONE,
     FIND_MANY,
+    FIND_ALL_BY_ID,
+    FIND_PAGE,
+    STREAM_ALL,
+    PROJECT,
     DELETE_ONE,
     DELETE_MANY,
     COUNT;
@@ -5,7 +5,10 @@ import com.batherphilippa.peopledb.annotation.Id;
 import java.math.BigDecimal;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
@@ -23,6 +26,11 @@ public class Person {
     private Optional<Person> spouse = Optional.empty();
     private Optional<Person> parent = Optional.empty();
     private Set<Person> children = new HashSet<>() {};
+    // set when a relation is read lazily; cleared once it is loaded or set
+    private RelationLoader<Address> homeAddressLoader;
+    private RelationLoader<Address> businessAddressLoader;
+    private RelationLoader<Person> spouseLoader;
+    private RelationLoader<? extends Collection<Person>> childrenLoader;
 
     public Person(String firstname, String lastname, ZonedDateTime dob) {
         this.firstname = firstname;
@@ -73,34 +81,80 @@ public class Person {
     }
 
     public Optional<Address> getHomeAddress() {
+        if (homeAddressLoader != null) {
+            setHomeAddress(homeAddressLoader.load(this));
+        }
         return homeAddress;
     }
     public void setHomeAddress(Address homeAddress) {
+        this.homeAddressLoader = null;
         this.homeAddress = Optional.ofNullable(homeAddress);
     }
 
+    /**
+     * @param homeAddressLoader Reads the home address on the first call to getHomeAddress instead of now.
+     */
+    public void setHomeAddressLoader(RelationLoader<Address> homeAddressLoader) {
+        this.homeAddressLoader = homeAddressLoader;
+    }
+
     public Optional<Address> getBusinessAddress() {
+        if (businessAddressLoader != null) {
+            setBusinessAddress(businessAddressLoader.load(this));
+        }
         return businessAddress;
     }
 
     public void setBusinessAddress(Address businessAddress) {
+        this.businessAddressLoader = null;
         this.businessAddress = Optional.ofNullable(businessAddress);
     }
 
+    public void setBusinessAddressLoader(RelationLoader<Address> businessAddressLoader) {
+        this.businessAddressLoader = businessAddressLoader;
+    }
+
     public Optional<Person> getSpouse() {
+        if (spouseLoader != null) {
+            setSpouse(spouseLoader.load(this));
+        }
         return spouse;
     }
 
     public void setSpouse(Person spouse) {
+        this.spouseLoader = null;
         this.spouse = Optional.ofNullable(spouse);
     }
 
+    public void setSpouseLoader(RelationLoader<Person> spouseLoader) {
+        this.spouseLoader = spouseLoader;
+    }
 
     public void addChild(Person child) {
+            loadChildren();
             children.add(child);
             child.setParent(this);
     }
 
+    /**
+     * @param childrenLoader Reads the children on the first call to getChildren or addChild instead of now.
+     */
+    public void setChildrenLoader(RelationLoader<? extends Collection<Person>> childrenLoader) {
+        this.childrenLoader = childrenLoader;
+    }
+
+    private void loadChildren() {
+        RelationLoader<? extends Collection<Person>> loader = childrenLoader;
+        if (loader != null) {
+            // cleared first, as adding the loaded children goes through addChild
+            childrenLoader = null;
+            Collection<Person> loaded = loader.load(this);
+            if (loaded != null) {
+                loaded.forEach(this::addChild);
+            }
+        }
+    }
+
     public Optional<Person> getParent() {
         return parent;
     }
@@ -110,9 +164,54 @@ public class Person {
     }
 
     public Set<Person> getChildren() {
+        loadChildren();
         return children;
     }
 
+    /**
+     * @return A copy of this person and of the people reachable from it, sharing no mutable state with them, so a
+     * change to one is not seen in the other; addresses are immutable and shared. A relation not read yet is read
+     * by the copy on first access, as it would have been by this person, and is then copied too.
+     */
+    public Person copy() {
+        return copy(new IdentityHashMap<>());
+    }
+
+    private Person copy(Map<Person, Person> copies) {
+        Person known = copies.get(this);
+        if (known != null) {
+            return known;
+        }
+        Person copy = new Person(id, firstname, lastname, dob);
+        copies.put(this, copy);
+        copy.salary = salary;
+        copy.email = email;
+        copy.homeAddress = homeAddress;
+        copy.businessAddress = businessAddress;
+        copy.homeAddressLoader = homeAddressLoader;
+        copy.businessAddressLoader = businessAddressLoader;
+        copy.spouse = spouse.map(person -> person.copy(copies));
+        copy.parent = parent.map(person -> person.copy(copies));
+        for (Person child : children) {
+            copy.children.add(child.copy(copies));
+        }
+        RelationLoader<Person> spouseLoader = this.spouseLoader;
+        if (spouseLoader != null) {
+            copy.spouseLoader = person -> {
+                Person loaded = spouseLoader.load(person);
+                return loaded == null ? null : loaded.copy();
+            };
+        }
+        RelationLoader<? extends Collection<Person>> childrenLoader = this.childrenLoader;
+        if (childrenLoader != null) {
+            copy.childrenLoader = person -> {
+                Collection<Person> loaded = childrenLoader.load(person);
+                return loaded == null ? null : loaded.stream().map(Person::copy).toList();
+            };
+        }
+        return copy;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,15 @@
+package com.batherphilippa.peopledb.domain;
+
+/**
+ * Reads a relation of a person that was left unread, on its first access. One loader may be shared by every person
+ * the same query returned, reading the relation for all of them on the first call.
+ * @param <R> The related entity, or a collection of them
+ */
+@FunctionalInterface
+public interface RelationLoader<R> {
+
+    /**
+     * @return The person's relation, or null if it has none.
+     */
+    R load(Person person);
+}
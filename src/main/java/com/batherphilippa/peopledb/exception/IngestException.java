@@ -0,0 +1,7 @@
+package com.batherphilippa.peopledb.exception;
+
+public class IngestException extends RuntimeException {
+    public IngestException(String message, Throwable throwable) {
+        super(message, throwable);
+    }
+}
@@ -0,0 +1,81 @@
+package com.batherphilippa.peopledb.ingest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads UTF-8 lines from a file channel through a direct buffer, keeping track of the byte offset
+ * just past the last line returned so a reader can later be reopened at exactly that point.
+ */
+class CsvLineReader implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private byte[] lineBytes = new byte[256];
+    private long offset;
+
+    CsvLineReader(Path file, long startOffset) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.channel.position(startOffset);
+        this.offset = startOffset;
+        // start with an empty buffer in read mode
+        buffer.flip();
+    }
+
+    /**
+     * @return The next line without its line terminator, or null at end of file.
+     */
+    String readLine() throws IOException {
+        int length = 0;
+        boolean readAny = false;
+        while (true) {
+            if (!buffer.hasRemaining()) {
+                buffer.clear();
+                int read = channel.read(buffer);
+                buffer.flip();
+                if (read == -1) {
+                    return readAny ? toLine(length) : null;
+                }
+            }
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                offset++;
+                readAny = true;
+                if (b == '\n') {
+                    return toLine(length);
+                }
+                if (length == lineBytes.length) {
+                    lineBytes = Arrays.copyOf(lineBytes, length * 2);
+                }
+                lineBytes[length++] = b;
+            }
+        }
+    }
+
+    /**
+     * @return The byte offset immediately after the last line returned by readLine.
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    private String toLine(int length) {
+        // tolerate Windows line endings
+        if (length > 0 && lineBytes[length - 1] == '\r') {
+            length--;
+        }
+        return new String(lineBytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
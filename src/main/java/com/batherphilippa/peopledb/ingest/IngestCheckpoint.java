@@ -0,0 +1,32 @@
+package com.batherphilippa.peopledb.ingest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Byte offset of the last committed line of an ingest, stored in a small text file so an
+ * interrupted load can pick up where it left off.
+ */
+class IngestCheckpoint {
+    private final Path file;
+
+    IngestCheckpoint(Path file) {
+        this.file = file;
+    }
+
+    long read() throws IOException {
+        if (!Files.exists(file)) {
+            return 0L;
+        }
+        return Long.parseLong(Files.readString(file).trim());
+    }
+
+    void write(long offset) throws IOException {
+        // write then rename so a crash never leaves a half written offset behind
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.writeString(tmp, Long.toString(offset));
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,61 @@
+package com.batherphilippa.peopledb.ingest;
+
+import com.batherphilippa.peopledb.domain.Person;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * Converts one line of the HR export into a Person. Stateless and therefore safe to share between
+ * parser threads.
+ */
+class PersonCsvParser {
+    private static final DateTimeFormatter DOB_FORMATTER = DateTimeFormatter.ofPattern("M/d/yyyy");
+    private static final DateTimeFormatter TOB_FORMATTER = DateTimeFormatter.ofPattern("hh:mm:ss a", Locale.US);
+    private static final ZoneId UTC = ZoneId.of("+0");
+
+    private static final int FIRST_NAME_COL = 2;
+    private static final int LAST_NAME_COL = 4;
+    private static final int EMAIL_COL = 6;
+    private static final int DOB_COL = 10;
+    private static final int TOB_COL = 11;
+    private static final int SALARY_COL = 25;
+    // columns are read in ascending order so the line is only scanned once
+    private static final int[] COLUMNS = {FIRST_NAME_COL, LAST_NAME_COL, EMAIL_COL, DOB_COL, TOB_COL, SALARY_COL};
+
+    Person parse(String line) {
+        String[] values = new String[COLUMNS.length];
+        int column = 0;
+        int start = 0;
+        int wanted = 0;
+        while (wanted < COLUMNS.length) {
+            int end = line.indexOf(',', start);
+            if (end == -1) {
+                end = line.length();
+            }
+            if (column == COLUMNS[wanted]) {
+                values[wanted++] = line.substring(start, end);
+            }
+            if (end == line.length()) {
+                break;
+            }
+            start = end + 1;
+            column++;
+        }
+        if (wanted < COLUMNS.length) {
+            throw new IllegalArgumentException(String.format("Expected at least %d columns in line: %s", SALARY_COL + 1, line));
+        }
+        LocalDate dob = LocalDate.parse(values[3], DOB_FORMATTER);
+        LocalTime tob = LocalTime.parse(values[4], TOB_FORMATTER);
+        Person person = new Person(values[0], values[1], ZonedDateTime.of(LocalDateTime.of(dob, tob), UTC));
+        person.setEmail(values[2]);
+        person.setSalary(new BigDecimal(values[5]));
+        return person;
+    }
+}
@@ -0,0 +1,220 @@
+package com.batherphilippa.peopledb.ingest;
+
+import com.batherphilippa.peopledb.domain.Person;
+import com.batherphilippa.peopledb.exception.IngestException;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads the HR export into the PEOPLE table.
+ * A reader thread splits the file into chunks of lines, a pool of parser threads turns each chunk into
+ * people and the calling thread hands the parsed chunks, in file order, to the batch writer. Parsed chunks
+ * wait in a bounded queue, so the reader stalls rather than running ahead of the database.
+ * Every commitInterval rows the connection is committed and the file offset reached is recorded in the
+ * checkpoint file; a later run with the same checkpoint resumes from that offset. Rows written after the
+ * last checkpoint of a failed run are rolled back. Loading is at least once, not exactly once: the checkpoint
+ * file is written after the commit, not within it, so a crash between the two leaves rows committed past the
+ * recorded offset, and the resumed run loads them again.
+ */
+public class PersonIngestPipeline {
+    private static final int DEFAULT_CHUNK_SIZE = 1_000;
+    private static final int DEFAULT_COMMIT_INTERVAL = 10_000;
+    private static final int DEFAULT_QUEUE_CAPACITY = 16;
+    private static final Chunk END_OF_FILE = new Chunk(List.of(), -1L);
+
+    private final Connection connection;
+    private final BatchWriter batchWriter;
+    private final PersonCsvParser parser = new PersonCsvParser();
+    private int parserThreads = Runtime.getRuntime().availableProcessors();
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int commitInterval = DEFAULT_COMMIT_INTERVAL;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+    /**
+     * Writes one parsed chunk of people through the pipeline's connection.
+     */
+    @FunctionalInterface
+    public interface BatchWriter {
+        /**
+         * @return The number of people written; fewer than given fails the ingest.
+         * @throws SQLException To fail the ingest, rolling back what was written since the last checkpoint.
+         */
+        long write(List<Person> people) throws SQLException;
+    }
+
+    /**
+     * @param connection Connection the batch writer writes through; committed by the pipeline.
+     * @param batchWriter Receives each parsed chunk of people, e.g. peopleRepo::saveAllOrThrow. It must throw
+     * rather than swallow a failure, or the rows it did not write would be checkpointed as loaded.
+     */
+    public PersonIngestPipeline(Connection connection, BatchWriter batchWriter) {
+        this.connection = connection;
+        this.batchWriter = batchWriter;
+    }
+
+    public void setParserThreads(int parserThreads) {
+        this.parserThreads = requirePositive(parserThreads, "Parser threads");
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = requirePositive(chunkSize, "Chunk size");
+    }
+
+    public void setCommitInterval(int commitInterval) {
+        this.commitInterval = requirePositive(commitInterval, "Commit interval");
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = requirePositive(queueCapacity, "Queue capacity");
+    }
+
+    /**
+     * @param csvFile HR export with a header line.
+     * @param checkpointFile Where the committed offset is kept; created if it does not exist.
+     * @return The number of people written by this run.
+     */
+    public long ingest(Path csvFile, Path checkpointFile) throws IOException {
+        IngestCheckpoint checkpoint = new IngestCheckpoint(checkpointFile);
+        long startOffset = checkpoint.read();
+        BlockingQueue<Future<Chunk>> chunks = new ArrayBlockingQueue<>(queueCapacity);
+        ExecutorService parserPool = Executors.newFixedThreadPool(parserThreads);
+        Thread reader = new Thread(() -> readChunks(csvFile, startOffset, parserPool, chunks), "person-ingest-reader");
+        reader.start();
+        try {
+            return writeChunks(chunks, checkpoint);
+        } finally {
+            reader.interrupt();
+            parserPool.shutdownNow();
+        }
+    }
+
+    private void readChunks(Path csvFile, long startOffset, ExecutorService parserPool, BlockingQueue<Future<Chunk>> chunks) {
+        Future<Chunk> last;
+        try (CsvLineReader reader = new CsvLineReader(csvFile, startOffset)) {
+            if (startOffset == 0L) {
+                // skip header
+                reader.readLine();
+            }
+            List<String> lines = new ArrayList<>(chunkSize);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                lines.add(line);
+                if (lines.size() == chunkSize) {
+                    chunks.put(submitChunk(parserPool, lines, reader.getOffset()));
+                    lines = new ArrayList<>(chunkSize);
+                }
+            }
+            if (!lines.isEmpty()) {
+                chunks.put(submitChunk(parserPool, lines, reader.getOffset()));
+            }
+            last = CompletableFuture.completedFuture(END_OF_FILE);
+        } catch (InterruptedException e) {
+            // writer has stopped; nothing left to do
+            Thread.currentThread().interrupt();
+            return;
+        } catch (Throwable e) {
+            // the writer waits for a last chunk, so it is handed the failure rather than left waiting
+            last = CompletableFuture.failedFuture(e);
+        }
+        try {
+            chunks.put(last);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Future<Chunk> submitChunk(ExecutorService parserPool, List<String> lines, long endOffset) {
+        return parserPool.submit(() -> new Chunk(lines.stream().map(parser::parse).toList(), endOffset));
+    }
+
+    private long writeChunks(BlockingQueue<Future<Chunk>> chunks, IngestCheckpoint checkpoint) throws IOException {
+        boolean autoCommit;
+        try {
+            autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+        } catch (SQLException e) {
+            throw new IngestException("Unable to start ingest transaction", e);
+        }
+        try {
+            long written = 0L;
+            long uncommitted = 0L;
+            long lastOffset = -1L;
+            Chunk chunk;
+            while ((chunk = chunks.take().get()) != END_OF_FILE) {
+                long saved = batchWriter.write(chunk.people());
+                if (saved < chunk.people().size()) {
+                    throw new SQLException(String.format("Expected to write %d people but wrote %d.", chunk.people().size(), saved));
+                }
+                written += chunk.people().size();
+                uncommitted += chunk.people().size();
+                lastOffset = chunk.endOffset();
+                if (uncommitted >= commitInterval) {
+                    commit(checkpoint, lastOffset);
+                    uncommitted = 0L;
+                }
+            }
+            if (uncommitted > 0L) {
+                commit(checkpoint, lastOffset);
+            }
+            return written;
+        } catch (SQLException e) {
+            rollbackQuietly();
+            throw new IngestException("Unable to write people to the database", e);
+        } catch (ExecutionException e) {
+            rollbackQuietly();
+            throw new IngestException("Unable to read or parse people", e.getCause());
+        } catch (InterruptedException e) {
+            rollbackQuietly();
+            Thread.currentThread().interrupt();
+            throw new IngestException("Ingest interrupted", e);
+        } catch (RuntimeException | IOException e) {
+            rollbackQuietly();
+            throw e;
+        } finally {
+            // only restored after any rollback, as switching auto-commit back on commits the open transaction
+            try {
+                connection.setAutoCommit(autoCommit);
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // the offset is only recorded once the rows up to it are committed, so it never runs ahead of the table
+    private void commit(IngestCheckpoint checkpoint, long offset) throws SQLException, IOException {
+        connection.commit();
+        checkpoint.write(offset);
+    }
+
+    private void rollbackQuietly() {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static int requirePositive(int value, String name) {
+        if (value < 1) {
+            throw new IllegalArgumentException(name + " must be at least 1.");
+        }
+        return value;
+    }
+
+    private record Chunk(List<Person> people, long endOffset) {}
+}
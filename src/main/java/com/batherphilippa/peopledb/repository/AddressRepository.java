@@ -3,23 +3,43 @@ package com.batherphilippa.peopledb.repository;
 import com.batherphilippa.peopledb.annotation.SQL;
 import com.batherphilippa.peopledb.domain.Address;
 import com.batherphilippa.peopledb.domain.CrudOperation;
+import com.batherphilippa.peopledb.domain.Region;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 
 public class AddressRepository extends CRUDRepository<Address>{
     private static final String INSERT_ADDRESS_SQL = """
             INSERT INTO ADDRESSES (STREET_ADDRESS, ADDRESS_2, CITY, STATE, POSTCODE, COUNTY, REGION, COUNTRY) VALUES(?,?,?,?,?,?,?,?);
             """;
+    private static final String INSERT_ADDRESS_WITH_ID_SQL = """
+            INSERT INTO ADDRESSES (STREET_ADDRESS, ADDRESS_2, CITY, STATE, POSTCODE, COUNTY, REGION, COUNTRY, ID) VALUES(?,?,?,?,?,?,?,?,?);
+            """;
+    private static final String UPSERT_ADDRESS_SQL = """
+            MERGE INTO ADDRESSES (STREET_ADDRESS, ADDRESS_2, CITY, STATE, POSTCODE, COUNTY, REGION, COUNTRY, ID) KEY(ID) VALUES(?,?,?,?,?,?,?,?,?);
+            """;
     private static final String FIND_BY_ID_SQL = """
             SELECT ID, STREET_ADDRESS, ADDRESS_2, CITY, STATE, POSTCODE, COUNTY, REGION, COUNTRY FROM ADDRESSES WHERE ID=?;
             """;
+    private static final String FIND_ALL_BY_ID_SQL = """
+            SELECT ID, STREET_ADDRESS, ADDRESS_2, CITY, STATE, POSTCODE, COUNTY, REGION, COUNTRY FROM ADDRESSES WHERE ID = ANY(?);
+            """;
+    private static final String PROJECT_SQL = """
+            SELECT :columns FROM ADDRESSES ORDER BY ID;
+            """;
+    // read order of extractAddress; ID first
+    static final String[] COLUMNS = {"ID", "STREET_ADDRESS", "ADDRESS_2", "CITY", "STATE", "POSTCODE", "COUNTY", "REGION", "COUNTRY"};
     public AddressRepository(Connection connection) {
         super(connection);
     }
 
+    public AddressRepository(ConnectionProvider connections) {
+        super(connections);
+    }
+
     @Override
     PreparedStatement mapForUpdate(Address address, PreparedStatement prepStat) throws SQLException {
         return null;
@@ -27,6 +47,9 @@ public class AddressRepository extends CRUDRepository<Address>{
 
     @Override
     @SQL(value = INSERT_ADDRESS_SQL, operationType = CrudOperation.SAVE)
+    @SQL(value = INSERT_ADDRESS_WITH_ID_SQL, operationType = CrudOperation.SAVE_WITH_ID)
+    @SQL(value = UPSERT_ADDRESS_SQL, operationType = CrudOperation.UPSERT)
+    @SQL(value = PROJECT_SQL, operationType = CrudOperation.PROJECT)
     void mapForSave(Address address, PreparedStatement ps) throws SQLException {
         ps.setString(1, address.streetAddress());
         ps.setString(2, address.address2());
@@ -40,18 +63,28 @@ public class AddressRepository extends CRUDRepository<Address>{
 
     @Override
     @SQL(value = FIND_BY_ID_SQL, operationType = CrudOperation.FIND_ONE)
-    Address extractEntityFromResultSet(ResultSet resultSet) throws SQLException {
-//        long addressId = resultSet.getLong("ID");
-//        String streetAddress = resultSet.getString("STREET_ADDRESS");
-//        String address2 = resultSet.getString("ADDRESS_2");
-//        String city = resultSet.getString("CITY");
-//        String state = resultSet.getString("STATE");
-//        String postcode = resultSet.getString("POSTCODE");
-//        String county = resultSet.getString("COUNTY");
-//        // problematic if field is null
-//        Region region = Region.valueOf(resultSet.getString("REGION").toUpperCase());
-//        String country = resultSet.getString("COUNTRY");
-//        return new Address(addressId, streetAddress, address2, city, state, postcode, country, county, region);
-        return null;
+    @SQL(value = FIND_ALL_BY_ID_SQL, operationType = CrudOperation.FIND_ALL_BY_ID)
+    RowMapper<Address> compileRowMapper(ResultSetMetaData metaData) throws SQLException {
+        int[] columns = ColumnLayout.of(metaData).resolve("", COLUMNS);
+        return resultSet -> extractAddress(resultSet, columns);
+    }
+
+    /**
+     * @param columns Indices of {@link #COLUMNS} in the result set, as resolved by {@link ColumnLayout#resolve}
+     * @return The address at the current row, or null if its ID is null, e.g. from an unmatched outer join.
+     */
+    static Address extractAddress(ResultSet resultSet, int[] columns) throws SQLException {
+        long addressId = resultSet.getLong(columns[0]);
+        if (resultSet.wasNull()) {return null;}
+        String streetAddress = resultSet.getString(columns[1]);
+        String address2 = resultSet.getString(columns[2]);
+        String city = resultSet.getString(columns[3]);
+        String state = resultSet.getString(columns[4]);
+        String postcode = resultSet.getString(columns[5]);
+        String county = resultSet.getString(columns[6]);
+        // problematic if field is null
+        Region region = Region.valueOf(resultSet.getString(columns[7]).toUpperCase());
+        String country = resultSet.getString(columns[8]);
+        return new Address(addressId, streetAddress, address2, city, state, postcode, country, county, region);
     }
 }
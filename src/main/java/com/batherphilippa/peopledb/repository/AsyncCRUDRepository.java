@@ -0,0 +1,81 @@
+package com.batherphilippa.peopledb.repository;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking facade over a repository. Each call runs on a virtual thread of its own, so thousands of
+ * lookups can be in flight without thousands of OS threads, while a semaphore caps how many of them use a
+ * connection at once; the rest wait, unmounted, for a permit.
+ */
+public class AsyncCRUDRepository<T> implements AutoCloseable {
+
+    private final CRUDRepository<T> repository;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Semaphore connectionPermits;
+
+    /**
+     * Allows as many concurrent operations as the repository's pool has connections, or one for a repository
+     * over a single connection.
+     */
+    public AsyncCRUDRepository(CRUDRepository<T> repository) {
+        this(repository, repository.connections instanceof ConnectionPool pool ? pool.getMaxSize() : 1);
+    }
+
+    public AsyncCRUDRepository(CRUDRepository<T> repository, int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("Max connections must be at least 1.");
+        }
+        this.repository = repository;
+        this.connectionPermits = new Semaphore(maxConnections, true);
+    }
+
+    public CompletableFuture<T> saveAsync(T entity) {
+        return submit(() -> repository.save(entity));
+    }
+
+    public CompletableFuture<Optional<T>> findByIdAsync(Long id) {
+        return submit(() -> repository.findById(id));
+    }
+
+    public CompletableFuture<List<T>> findAllAsync() {
+        return submit(repository::findAll);
+    }
+
+    public CompletableFuture<Void> deleteByIdAsync(T entity) {
+        return submit(() -> {
+            repository.deleteById(entity);
+            return null;
+        });
+    }
+
+    private <R> CompletableFuture<R> submit(Supplier<R> operation) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                connectionPermits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+            try {
+                return operation.get();
+            } finally {
+                connectionPermits.release();
+            }
+        }, executor);
+    }
+
+    /**
+     * Waits for submitted operations to finish, then stops accepting new ones.
+     */
+    @Override
+    public void close() {
+        executor.close();
+    }
+}
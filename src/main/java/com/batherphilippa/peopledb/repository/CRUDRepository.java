@@ -1,221 +1,1385 @@
 package com.batherphilippa.peopledb.repository;
 
-import com.batherphilippa.peopledb.annotation.Id;
-import com.batherphilippa.peopledb.annotation.MultiSQL;
-import com.batherphilippa.peopledb.annotation.SQL;
 import com.batherphilippa.peopledb.domain.CrudOperation;
 import com.batherphilippa.peopledb.exception.DataException;
-import com.batherphilippa.peopledb.exception.NoIdFoundException;
-import com.batherphilippa.peopledb.exception.UnableToSetIdFieldException;
+import com.batherphilippa.peopledb.exception.UnableToSaveException;
 
+import javax.sql.DataSource;
+import java.math.BigDecimal;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public abstract class CRUDRepository<T> {
 
+    private static final int DEFAULT_BATCH_SIZE = 500;
+    private static final int DEFAULT_FETCH_SIZE = 1_000;
+    // start time of a statement nobody was listening for when it began
+    private static final long NOT_TIMED = Long.MIN_VALUE;
+    private static final Object[] NO_PARAMETERS = new Object[0];
+
     // protected to be seen by subclasses
-    protected Connection connection;
-    private PreparedStatement savedPS;
-    private PreparedStatement findByIdPS;
+    protected final ConnectionProvider connections;
+    private final EntityMetadata<T> metadata = EntityMetadata.of(getClass());
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+    private volatile int fetchSize = DEFAULT_FETCH_SIZE;
+    private volatile EntityCache<T> entityCache;
+    private volatile SequenceIdGenerator idGenerator;
+    private final List<EntityChangeListener<T>> changeListeners = new CopyOnWriteArrayList<>();
+    private final List<RepositoryListener> repositoryListeners = new CopyOnWriteArrayList<>();
+    // one compiled mapper per statement shape, keyed by the statement's SQL
+    private final Map<String, RowMapper<T>> rowMappers = new ConcurrentHashMap<>();
+    // partial UPDATE SQL keyed by the set of columns it writes, as a bit mask over getUpdateColumns
+    private final Map<Integer, String> updateSqlByColumns = new ConcurrentHashMap<>();
+    // keyed by SQL: the position of the ID parameter bindWithId binds last
+    private final Map<String, Integer> idParameterIndexes = new ConcurrentHashMap<>();
+
+    // cache invalidations to repeat once the transaction inTransaction runs on a connection commits
+    private static final Map<Connection, List<Runnable>> AFTER_COMMIT = new ConcurrentHashMap<>();
+
+    private record PendingUpdate<E>(Long id, E entity, Object[] columnValues, Object[] previousColumnValues) {}
+
+    @FunctionalInterface
+    interface ConnectionCallback<R> {
+        R doInConnection(Connection connection, StatementCache statements) throws SQLException;
+    }
+
+    @FunctionalInterface
+    interface ResultSetCallback {
+        /**
+         * @return The number of rows read.
+         */
+        int doInResultSet(ResultSet resultSet) throws SQLException;
+    }
+
+    // the mapper for a read, given its result set before the first row
+    @FunctionalInterface
+    private interface MapperResolver<R> {
+        RowMapper<R> resolve(ResultSet resultSet) throws SQLException;
+    }
+
+    @FunctionalInterface
+    interface StatementBinder<E> {
+        void bind(E item, PreparedStatement ps) throws SQLException;
+    }
+
+    @FunctionalInterface
+    private interface IdChunkCallback {
+        void doWithChunk(int chunkIdx, List<Long> chunk) throws SQLException;
+    }
 
-    public CRUDRepository(Connection connection) throws DataException{
+    /**
+     * A repository over a single connection; use it from one thread at a time.
+     */
+    public CRUDRepository(Connection connection) throws DataException {
+        this(ConnectionProvider.of(connection));
+    }
+
+    /**
+     * A repository that leases a pooled connection per operation and can be shared between threads.
+     */
+    public CRUDRepository(DataSource dataSource) throws DataException {
+        this(dataSource instanceof ConnectionPool pool ? pool : new ConnectionPool(dataSource));
+    }
+
+    public CRUDRepository(ConnectionProvider connections) throws DataException {
+        this.connections = connections;
         try {
-            this.connection = connection;
-            this.savedPS = connection.prepareStatement(getSqlByAnnotation(CrudOperation.SAVE, this::getSaveSql), Statement.RETURN_GENERATED_KEYS);
-            this.findByIdPS = connection.prepareStatement(getSqlByAnnotation(CrudOperation.FIND_ONE, this::getFindByIdSql));
+            // prepared up front so a repository with bad SQL fails on construction
+            withConnection((connection, statements) -> {
+                savedPS(statements);
+                return findByIdPS(statements);
+            });
         } catch(SQLException e) {
             throw new DataException("Unable to create Prepared Statements for CRUDRepository", e);
         }
     }
+
+    /**
+     * Runs the callback on a connection leased for its duration; nested calls on the same thread share it.
+     */
+    <R> R withConnection(ConnectionCallback<R> callback) throws SQLException {
+        Connection connection = connections.acquire();
+        try {
+            StatementCache statements = connections.statementCache(connection);
+            statements.beginOperation();
+            try {
+                return callback.doInConnection(connection, statements);
+            } finally {
+                statements.endOperation();
+            }
+        } finally {
+            connections.release(connection);
+        }
+    }
+
+    /**
+     * Runs the callback in a transaction of its own, committed when it returns and rolled back if it throws. A
+     * connection already in manual commit mode has a transaction, which is the one committed.
+     */
+    <R> R inTransaction(ConnectionCallback<R> callback) throws SQLException {
+        return withConnection((connection, statements) -> {
+            boolean autoCommit = connection.getAutoCommit();
+            // a nested call shares the outermost call's invalidations, and each commit runs those gathered so far
+            boolean outermost = AFTER_COMMIT.putIfAbsent(connection, new ArrayList<>()) == null;
+            connection.setAutoCommit(false);
+            try {
+                R result = callback.doInConnection(connection, statements);
+                connection.commit();
+                List<Runnable> afterCommit = AFTER_COMMIT.get(connection);
+                afterCommit.forEach(Runnable::run);
+                afterCommit.clear();
+                return result;
+            } catch (SQLException | RuntimeException e) {
+                rollback(connection);
+                throw e;
+            } finally {
+                if (outermost) {
+                    AFTER_COMMIT.remove(connection);
+                }
+                connection.setAutoCommit(autoCommit);
+            }
+        });
+    }
+
+    private void rollback(Connection connection) {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
     private String getSqlByAnnotation(CrudOperation operationType, Supplier<String> sqlGetter) {
-        Stream<SQL> sqlStream = getSqlStream();
-        Stream<SQL> multiSqlStream = getMultiSqlStream();
-        return Stream.concat(sqlStream, multiSqlStream)
-               // filter for annotations of the required operation type
-                .filter(a -> a.operationType().equals(operationType))
-               // then get it's value(s)
-                .map(SQL::value)
-                .findFirst()
-               // passing ref to method; rather than calling it
-                .orElseGet(sqlGetter);
-    }
-
-    private Stream<SQL> getSqlStream() {
-        return Arrays.stream(this.getClass().getDeclaredMethods())
-                // filter methods for those with SQL annotation defined on them
-                .filter(m -> m.isAnnotationPresent(SQL.class))
-                // convert to a stream of annotations
-                .map(m -> m.getAnnotation(SQL.class));
-    }
-
-    private Stream<SQL> getMultiSqlStream() {
-        return Arrays.stream(this.getClass().getDeclaredMethods())
-                .filter(m -> m.isAnnotationPresent(MultiSQL.class))
-                .map(m -> m.getAnnotation(MultiSQL.class))
-                // returns a stream of SQL
-                .flatMap(msql -> Arrays.stream(msql.value()));
+        // annotations were resolved once per class; passing ref to method rather than calling it
+        return metadata.getSql(operationType).orElseGet(sqlGetter);
+    }
+
+    private PreparedStatement savedPS(StatementCache statements) throws SQLException {
+        return statements.prepare(CrudOperation.SAVE, getSqlByAnnotation(CrudOperation.SAVE, this::getSaveSql),
+                (c, sql) -> c.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS));
+    }
+
+    private PreparedStatement findByIdPS(StatementCache statements) throws SQLException {
+        return statements.prepare(CrudOperation.FIND_ONE, getSqlByAnnotation(CrudOperation.FIND_ONE, this::getFindByIdSql));
+    }
+
+    private PreparedStatement readManyPS(StatementCache statements, CrudOperation operationType, String sql) throws SQLException {
+        return statements.prepare(operationType, sql,
+                // forward only: rows are read once, in order, so the driver need not keep a snapshot
+                // read only; no updates to be made
+                (c, s) -> c.prepareStatement(s, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY));
+    }
+
+    // column labels are resolved the first time a statement is read; later reads reuse the compiled mapper
+    RowMapper<T> rowMapper(String sql, ResultSet resultSet) throws SQLException {
+        RowMapper<T> mapper = rowMappers.get(sql);
+        if (mapper == null) {
+            mapper = compileRowMapper(resultSet.getMetaData());
+            RowMapper<T> raced = rowMappers.putIfAbsent(sql, mapper);
+            mapper = raced == null ? mapper : raced;
+        }
+        return mapper;
+    }
+
+    /**
+     * @return The statement cache of the connection the calling thread would use, e.g. to read its hit and miss counts.
+     */
+    public StatementCache getStatementCache() {
+        try {
+            return withConnection((connection, statements) -> statements);
+        } catch (SQLException e) {
+            throw new DataException("Unable to acquire a connection", e);
+        }
     }
 
     private Long getIdByAnnotation(T entity) {
-        // convert array of fields into stream of fields
-        return Arrays.stream(entity.getClass().getDeclaredFields())
-                // find @Id annotation
-                .filter(f -> f.isAnnotationPresent(Id.class))
-                // stream of longs
-                .map(f -> {
-                    // allows us to tell Java to override field's access modifier
-                    f.setAccessible(true);
-                    // f is a field fo the class (not the object); the entity is the object
-                    long id;
-                    try {
-                        id = (long) f.get(entity);
-                    } catch (IllegalAccessException e) {
-                        throw new RuntimeException(e);
-                    }
-                    return id;
-                }).findFirst()
-                .orElseThrow(() -> new NoIdFoundException("No ID annotated field found."));
+        return metadata.getId(entity);
     }
 
     private void setIdByAnnotation(Long id, T entity) {
-        Arrays.stream(entity.getClass().getDeclaredFields())
-                .filter(f -> f.isAnnotationPresent(Id.class))
-                .forEach(f -> {
-                    f.setAccessible(true);
-                    try {
-                        f.set(entity, id);
-                    } catch (IllegalAccessException e) {
-                        throw new UnableToSetIdFieldException("Unable to set ID field exception.");
-                    }
-                });
+        metadata.setId(entity, id);
+    }
+
+    /**
+     * @param entityCache Second-level cache consulted by findById and findAllById; give the same cache to every
+     * repository of this type to share it process-wide. Null turns caching off. Entities read outside a transaction
+     * are cached, and writes invalidate them, so the cache never holds a change that may yet be rolled back. A write
+     * in inTransaction invalidates again once it commits, and a read is not cached when a write to its entity ran
+     * while it did; a connection whose transactions the caller commits should call invalidateAll after committing. The
+     * cache holds copies, and hands each lookup a copy of its own, so callers never share an instance.
+     */
+    public void setEntityCache(EntityCache<T> entityCache) {
+        this.entityCache = entityCache;
+    }
+
+    // makes a written entity the instance later lookups on this thread see; the shared cache forgets it until it is
+    // read again, as the write may not be committed yet
+    private void cacheWritten(Connection connection, Long id, T entity) throws SQLException {
+        IdentityMap identityMap = IdentityMap.current();
+        if (identityMap != null) {
+            manageEntity(identityMap, id, entity);
+        }
+        invalidateCached(connection, id);
+    }
+
+    // makes a read entity the instance later lookups on this thread see, and caches a copy of it for other threads
+    // when it was read outside a transaction, so what is cached is committed; the generation is the one taken before
+    // the read, so a row an invalidate has overtaken is not cached
+    private void cacheRead(Connection connection, Long id, T entity, long generation) throws SQLException {
+        IdentityMap identityMap = IdentityMap.current();
+        if (identityMap != null) {
+            manageEntity(identityMap, id, entity);
+        }
+        EntityCache<T> entityCache = this.entityCache;
+        if (entityCache != null && connection.getAutoCommit()) {
+            entityCache.put(id, copyEntity(entity), generation);
+        }
+    }
+
+    // the cache generation of an id, taken before reading it so cacheRead can tell whether a write overtook the read
+    private long cacheGeneration(Long id) {
+        EntityCache<T> entityCache = this.entityCache;
+        return entityCache == null ? 0 : entityCache.generation(id);
+    }
+
+    // forgets an id now and, inside a transaction inTransaction runs, again once it commits: until then another
+    // thread's read still sees the row as it was and may have cached it in the meantime
+    private void invalidateCached(Connection connection, Long id) throws SQLException {
+        EntityCache<T> entityCache = this.entityCache;
+        if (entityCache == null) {
+            return;
+        }
+        entityCache.invalidate(id);
+        List<Runnable> afterCommit = connection.getAutoCommit() ? null : AFTER_COMMIT.get(connection);
+        if (afterCommit != null) {
+            afterCommit.add(() -> entityCache.invalidate(id));
+        }
+    }
+
+    // the snapshot taken here is what later updates in the unit of work are compared against
+    private void manageEntity(IdentityMap identityMap, Long id, T entity) {
+        identityMap.put(metadata.getEntityType(), id, entity);
+        if (getUpdateColumns() != null) {
+            identityMap.putSnapshot(metadata.getEntityType(), id, getColumnValues(entity));
+        }
+    }
+
+    private void evictEntity(Connection connection, Long id) throws SQLException {
+        IdentityMap identityMap = IdentityMap.current();
+        if (identityMap != null) {
+            identityMap.remove(metadata.getEntityType(), id);
+        }
+        invalidateCached(connection, id);
+    }
+
+    /**
+     * @param listener Told of every row this repository writes from now on; see EntityChangeListener.
+     */
+    public void addChangeListener(EntityChangeListener<T> listener) {
+        changeListeners.add(listener);
+    }
+
+    public void removeChangeListener(EntityChangeListener<T> listener) {
+        changeListeners.remove(listener);
+    }
+
+    /**
+     * @param listener Told of every statement this repository executes and every operation that fails, e.g. a
+     * RepositoryMetrics or SlowQueryLog.
+     */
+    public void addRepositoryListener(RepositoryListener listener) {
+        repositoryListeners.add(listener);
+    }
+
+    public void removeRepositoryListener(RepositoryListener listener) {
+        repositoryListeners.remove(listener);
+    }
+
+    // statements are only timed while someone is listening
+    private long startTiming() {
+        return repositoryListeners.isEmpty() ? NOT_TIMED : System.nanoTime();
+    }
+
+    /**
+     * @param parameters The query's bind values, to re-run it for EXPLAIN ANALYZE; null for writes.
+     */
+    private void recordStatement(long startNanos, CrudOperation operationType, String sql, Statement statement,
+                                 int batchSize, long rowsRead, long rowsWritten, Object[] parameters) {
+        if (startNanos == NOT_TIMED) {
+            return;
+        }
+        StatementEvent event = new StatementEvent(metadata.getEntityType(), operationType, sql, System.nanoTime() - startNanos,
+                batchSize, rowsRead, rowsWritten, statement, parameters);
+        repositoryListeners.forEach(listener -> listener.onStatement(event));
+    }
+
+    // listeners count the error; it is then printed as before
+    void reportError(CrudOperation operationType, SQLException e) {
+        repositoryListeners.forEach(listener -> listener.onError(metadata.getEntityType(), operationType, e));
+        e.printStackTrace();
+    }
+
+    /**
+     * @param batchSize Number of rows sent to the database per JDBC batch by saveAll, and number of IDs bound per
+     * statement by findAllById and deleteAllById.
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1.");
+        }
+        this.batchSize = batchSize;
+    }
+
+    int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param idGenerator Numbers saved entities from blocks of IDs reserved from a sequence, instead of reading back
+     * the keys the database generates. Null goes back to generated keys.
+     */
+    public void setIdGenerator(SequenceIdGenerator idGenerator) {
+        this.idGenerator = idGenerator;
+    }
+
+    // whether a saved entity has its ID from when it is bound, rather than once its batch has run
+    boolean assignsIds() {
+        return idGenerator != null;
+    }
+
+    /**
+     * @param fetchSize Number of rows the driver is asked to fetch per round trip when reading many rows.
+     */
+    public void setFetchSize(int fetchSize) {
+        if (fetchSize < 0) {
+            throw new IllegalArgumentException("Fetch size must not be negative.");
+        }
+        this.fetchSize = fetchSize;
     }
 
     protected T save(T entity) {
         try {
-            mapForSave(entity, savedPS);
-            savedPS.executeUpdate();
-            ResultSet resultSet = savedPS.getGeneratedKeys();
-            while(resultSet.next()) {
-                long id = resultSet.getLong(1);
-                setIdByAnnotation(id, entity);
-                postSave(id, entity);
-                return entity;
+            return withConnection((connection, statements) -> {
+                if (idGenerator != null) {
+                    // numbered before insert, so there are no keys to read back and it takes the batched path
+                    insertBatches(connection, statements, List.of(entity).iterator(), true, batch -> {});
+                    return entity;
+                }
+                // dependencies are saved before binding as they share savedPS with this entity
+                preSave(entity);
+                PreparedStatement savedPS = savedPS(statements);
+                mapForSave(entity, savedPS);
+                long startNanos = startTiming();
+                int rowsWritten = savedPS.executeUpdate();
+                recordStatement(startNanos, CrudOperation.SAVE, getSqlByAnnotation(CrudOperation.SAVE, this::getSaveSql), savedPS,
+                        1, 0, rowsWritten, null);
+                try (ResultSet resultSet = savedPS.getGeneratedKeys()) {
+                    while(resultSet.next()) {
+                        long id = resultSet.getLong(1);
+                        setIdByAnnotation(id, entity);
+                        cacheWritten(connection, id, entity);
+                        changeListeners.forEach(listener -> listener.onSaved(entity));
+                        postSave(id, entity);
+                        return entity;
+                    }
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            reportError(CrudOperation.SAVE, e);
+        }
+        return null;
+    }
+
+    protected List<T> saveAll(Collection<T> entities) {
+        List<T> savedEntities = new ArrayList<>(entities.size());
+        saveAll(entities.stream(), savedEntities::addAll);
+        return savedEntities;
+    }
+
+    /**
+     * Saves the stream in batches of batchSize rows without holding on to the saved entities,
+     * so arbitrarily large streams can be loaded in constant memory.
+     * @return The number of entities saved.
+     */
+    protected long saveAll(Stream<T> entities) {
+        return saveAll(entities, batch -> {});
+    }
+
+    private long saveAll(Stream<T> entities, Consumer<List<T>> onBatchSaved) {
+        try {
+            return withConnection((connection, statements) ->
+                    insertBatches(connection, statements, entities.iterator(), true, onBatchSaved));
+        } catch (SQLException e) {
+            reportError(CrudOperation.SAVE, e);
+        }
+        return 0L;
+    }
+
+    /**
+     * saveAll, leaving a failure to the caller.
+     * @return The number of rows inserted.
+     */
+    long saveGraphs(Collection<T> entities) throws SQLException {
+        return withConnection((connection, statements) ->
+                insertBatches(connection, statements, entities.iterator(), true, batch -> {}));
+    }
+
+    /**
+     * Inserts only the entities' own rows, in JDBC batches of batchSize as saveAll does, but without preSave or
+     * postSave: relations are neither saved first nor cascaded to, so a {@link UnitOfWork} can order them itself.
+     * @return The number of rows inserted.
+     */
+    long insertAll(Collection<T> entities) throws SQLException {
+        return withConnection((connection, statements) ->
+                insertBatches(connection, statements, entities.iterator(), false, batch -> {}));
+    }
+
+    private long insertBatches(Connection connection, StatementCache statements, Iterator<T> entities, boolean cascade,
+                               Consumer<List<T>> onBatchSaved) throws SQLException {
+        long savedCount = 0L;
+        int batchSize = this.batchSize;
+        List<T> batch = new ArrayList<>(batchSize);
+        SequenceIdGenerator idGenerator = this.idGenerator;
+        String sql = idGenerator == null ? getSqlByAnnotation(CrudOperation.SAVE, this::getSaveSql)
+                : getSqlByAnnotation(CrudOperation.SAVE_WITH_ID, this::getSaveWithIdSql);
+        PreparedStatement savedPS = idGenerator == null ? savedPS(statements) : statements.prepare(CrudOperation.SAVE_WITH_ID, sql);
+        try {
+            while (entities.hasNext()) {
+                T entity = entities.next();
+                if (cascade) {
+                    preSave(entity);
+                }
+                if (idGenerator == null) {
+                    mapForSave(entity, savedPS);
+                } else {
+                    // numbered as it is bound, so rows bound after it can refer to it
+                    long id = idGenerator.nextId(connection);
+                    setIdByAnnotation(id, entity);
+                    bindWithId(savedPS, sql, entity, id);
+                }
+                savedPS.addBatch();
+                batch.add(entity);
+                if (batch.size() == batchSize) {
+                    savedCount += executeSaveBatch(connection, savedPS, sql, batch, cascade, idGenerator == null);
+                    onBatchSaved.accept(List.copyOf(batch));
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                savedCount += executeSaveBatch(connection, savedPS, sql, batch, cascade, idGenerator == null);
+                onBatchSaved.accept(List.copyOf(batch));
+            }
+        } catch (SQLException e) {
+            clearBatch(savedPS);
+            throw e;
+        }
+        return savedCount;
+    }
+
+    /**
+     * Inserts the entity, or overwrites the row with its ID, in one statement, rather than a findById followed by
+     * save or updateById. An entity without an ID is saved instead. A row inserted this way takes the entity's ID
+     * as given. Dependencies without IDs are saved first, as by save, but only the entity's own row is written:
+     * postSave cascades, e.g. to children, are not run.
+     */
+    protected T upsert(T entity) {
+        Long id = getIdByAnnotation(entity);
+        if (id == null) {
+            return save(entity);
+        }
+        try {
+            withConnection((connection, statements) -> {
+                preSave(entity);
+                String sql = getSqlByAnnotation(CrudOperation.UPSERT, this::getUpsertSql);
+                PreparedStatement upsertPS = statements.prepare(CrudOperation.UPSERT, sql);
+                bindWithId(upsertPS, sql, entity, id);
+                long startNanos = startTiming();
+                int rowsWritten = upsertPS.executeUpdate();
+                recordStatement(startNanos, CrudOperation.UPSERT, sql, upsertPS, 1, 0, rowsWritten, null);
+                cacheWritten(connection, id, entity);
+                return rowsWritten;
+            });
+            changeListeners.forEach(listener -> listener.onUpserted(entity));
+            return entity;
+        } catch (SQLException e) {
+            reportError(CrudOperation.UPSERT, e);
+        }
+        return null;
+    }
+
+    /**
+     * Upserts the entities in JDBC batches of batchSize: those without IDs by saveAll, then the rest by one
+     * batched MERGE statement.
+     * @return The entities written, new ones first.
+     */
+    protected List<T> upsertAll(Collection<T> entities) {
+        List<T> newEntities = new ArrayList<>();
+        List<T> identifiedEntities = new ArrayList<>();
+        entities.forEach(entity -> (getIdByAnnotation(entity) == null ? newEntities : identifiedEntities).add(entity));
+        List<T> upsertedEntities = new ArrayList<>(entities.size());
+        if (!newEntities.isEmpty()) {
+            upsertedEntities.addAll(saveAll(newEntities));
+        }
+        try {
+            withConnection((connection, statements) -> {
+                int batchSize = this.batchSize;
+                String sql = getSqlByAnnotation(CrudOperation.UPSERT, this::getUpsertSql);
+                PreparedStatement upsertPS = statements.prepare(CrudOperation.UPSERT, sql);
+                List<T> batch = new ArrayList<>(batchSize);
+                try {
+                    for (T entity : identifiedEntities) {
+                        preSave(entity);
+                        bindWithId(upsertPS, sql, entity, getIdByAnnotation(entity));
+                        upsertPS.addBatch();
+                        batch.add(entity);
+                        if (batch.size() == batchSize) {
+                            executeUpsertBatch(connection, upsertPS, batch, upsertedEntities);
+                        }
+                    }
+                    if (!batch.isEmpty()) {
+                        executeUpsertBatch(connection, upsertPS, batch, upsertedEntities);
+                    }
+                } catch (SQLException e) {
+                    clearBatch(upsertPS);
+                    throw e;
+                }
+                return upsertedEntities;
+            });
+        } catch (SQLException e) {
+            reportError(CrudOperation.UPSERT, e);
+        }
+        return upsertedEntities;
+    }
+
+    private void executeUpsertBatch(Connection connection, PreparedStatement upsertPS, List<T> batch, List<T> upsertedEntities) throws SQLException {
+        long startNanos = startTiming();
+        int rowsWritten = sumUpdateCounts(upsertPS.executeBatch());
+        recordStatement(startNanos, CrudOperation.UPSERT, getSqlByAnnotation(CrudOperation.UPSERT, this::getUpsertSql), upsertPS,
+                batch.size(), 0, rowsWritten, null);
+        for (T entity : batch) {
+            cacheWritten(connection, getIdByAnnotation(entity), entity);
+            changeListeners.forEach(listener -> listener.onUpserted(entity));
+        }
+        upsertedEntities.addAll(batch);
+        batch.clear();
+    }
+
+    // upserts and saves numbered by the repository take the save SQL's parameters, bound by mapForSave, then the ID
+    // as their last parameter, whose position is read from the statement once per SQL
+    private void bindWithId(PreparedStatement ps, String sql, T entity, Long id) throws SQLException {
+        mapForSave(entity, ps);
+        Integer idParameterIndex = idParameterIndexes.get(sql);
+        if (idParameterIndex == null) {
+            idParameterIndex = ps.getParameterMetaData().getParameterCount();
+            idParameterIndexes.put(sql, idParameterIndex);
+        }
+        ps.setLong(idParameterIndex, id);
+    }
+
+    private int executeSaveBatch(Connection connection, PreparedStatement savedPS, String sql, List<T> batch, boolean cascade,
+                                 boolean generatedKeys) throws SQLException {
+        long startNanos = startTiming();
+        int rowsWritten = sumUpdateCounts(savedPS.executeBatch());
+        long[] ids = new long[batch.size()];
+        int keyIdx = 0;
+        if (generatedKeys) {
+            // generated keys are returned in the same order the rows were added to the batch; all are read before
+            // postSave runs, as its cascades reuse savedPS and would close the keys' result set
+            try (ResultSet resultSet = savedPS.getGeneratedKeys()) {
+                while (resultSet.next() && keyIdx < ids.length) {
+                    ids[keyIdx++] = resultSet.getLong(1);
+                }
+            }
+        } else {
+            for (T entity : batch) {
+                ids[keyIdx++] = getIdByAnnotation(entity);
+            }
+        }
+        // reported as saves, whether or not the IDs were generated
+        recordStatement(startNanos, CrudOperation.SAVE, sql, savedPS, batch.size(), 0, rowsWritten, null);
+        if (keyIdx != batch.size()) {
+            throw new UnableToSaveException(String.format("Expected %d generated keys but received %d.", batch.size(), keyIdx));
+        }
+        for (int i = 0; i < ids.length; i++) {
+            T entity = batch.get(i);
+            setIdByAnnotation(ids[i], entity);
+            cacheWritten(connection, ids[i], entity);
+            changeListeners.forEach(listener -> listener.onSaved(entity));
+            if (cascade) {
+                postSave(ids[i], entity);
             }
+        }
+        return rowsWritten;
+    }
+
+    private void clearBatch(PreparedStatement ps) {
+        try {
+            ps.clearBatch();
         } catch (SQLException e) {
             e.printStackTrace();
         }
+    }
+
+    // the instance from the thread's identity map, else a copy of the shared cache's; null if neither holds it
+    private T findCached(Long id) {
+        IdentityMap identityMap = IdentityMap.current();
+        if (identityMap != null) {
+            T known = identityMap.get(metadata.getEntityType(), id);
+            if (known != null) {
+                return known;
+            }
+        }
+        EntityCache<T> entityCache = this.entityCache;
+        if (entityCache != null) {
+            Optional<T> cached = entityCache.get(id);
+            if (cached.isPresent()) {
+                T copy = copyEntity(cached.get());
+                if (identityMap != null) {
+                    manageEntity(identityMap, id, copy);
+                }
+                return copy;
+            }
+        }
         return null;
     }
+
     protected Optional<T> findById(Long id) {
+        T cached = findCached(id);
+        if (cached != null) {
+            return Optional.of(cached);
+        }
         T entity = null;
         try {
-            findByIdPS.setLong(1, id);
-            ResultSet rs = findByIdPS.executeQuery();
-            while(rs.next()) {
-                entity = extractEntityFromResultSet(rs);
-            }
+            entity = withConnection((connection, statements) -> {
+                T found = null;
+                long generation = cacheGeneration(id);
+                String sql = getSqlByAnnotation(CrudOperation.FIND_ONE, this::getFindByIdSql);
+                PreparedStatement findByIdPS = statements.prepare(CrudOperation.FIND_ONE, sql);
+                findByIdPS.setLong(1, id);
+                long startNanos = startTiming();
+                int rowsRead = 0;
+                try (ResultSet rs = findByIdPS.executeQuery()) {
+                    RowMapper<T> mapper = rowMapper(sql, rs);
+                    while(rs.next()) {
+                        found = mapper.mapRow(rs);
+                        rowsRead++;
+                    }
+                }
+                recordStatement(startNanos, CrudOperation.FIND_ONE, sql, findByIdPS, 1, rowsRead, 0, new Object[]{id});
+                if (found != null) {
+                    loadRelations(connection, statements, CrudOperation.FIND_ONE, List.of(found));
+                    cacheRead(connection, id, found, generation);
+                }
+                return found;
+            });
         } catch (SQLException e) {
-            e.printStackTrace();
+            reportError(CrudOperation.FIND_ONE, e);
         }
         return Optional.ofNullable(entity);
     }
 
-    protected List<T> findAll() {
-        List<T> entities = new ArrayList<>();
-        try {
-            PreparedStatement ps = connection.prepareStatement(
-                    getSqlByAnnotation(CrudOperation.FIND_MANY, this::getFindAllSql),
-                    // allows us to scroll; insensitive: get snapshot of a static dataset (so not affected by changes
-                    // made by others connecting simultaneously
-                    ResultSet.TYPE_SCROLL_INSENSITIVE,
-                    // read only; no updates to be made
-                    ResultSet.CONCUR_READ_ONLY);
-            ResultSet resultSet = ps.executeQuery();
-            while (resultSet.next()) {
-                entities.add(extractEntityFromResultSet(resultSet));
+    /**
+     * Looks up many entities in a fixed number of round trips rather than one findById per ID. IDs not already held
+     * by the identity map or entity cache are read batchSize at a time by one array-bound query, and the entities
+     * read are then passed to loadRelations together.
+     * @return The entities found, in the order of the given IDs; IDs with no entity are left out.
+     */
+    protected List<T> findAllById(Collection<Long> ids) {
+        Set<Long> distinctIds = new LinkedHashSet<>(ids);
+        Map<Long, T> found = new HashMap<>();
+        List<Long> missingIds = new ArrayList<>();
+        for (Long id : distinctIds) {
+            T cached = findCached(id);
+            if (cached != null) {
+                found.put(id, cached);
+            } else {
+                missingIds.add(id);
             }
+        }
+        if (!missingIds.isEmpty()) {
+            try {
+                withConnection((connection, statements) -> {
+                    Map<Long, Long> generations = new HashMap<>();
+                    for (Long id : missingIds) {
+                        generations.put(id, cacheGeneration(id));
+                    }
+                    String sql = getSqlByAnnotation(CrudOperation.FIND_ALL_BY_ID, this::getFindAllByIdSql);
+                    PreparedStatement ps = readManyPS(statements, CrudOperation.FIND_ALL_BY_ID, sql);
+                    List<T> fetched = new ArrayList<>(missingIds.size());
+                    queryByIdChunks(connection, ps, sql, missingIds, resultSet -> {
+                        RowMapper<T> mapper = rowMapper(sql, resultSet);
+                        int rowsRead = 0;
+                        while (resultSet.next()) {
+                            fetched.add(mapper.mapRow(resultSet));
+                            rowsRead++;
+                        }
+                        return rowsRead;
+                    });
+                    loadRelations(connection, statements, CrudOperation.FIND_ALL_BY_ID, fetched);
+                    for (T entity : fetched) {
+                        Long id = getIdByAnnotation(entity);
+                        found.put(id, entity);
+                        cacheRead(connection, id, entity, generations.get(id));
+                    }
+                    return fetched;
+                });
+            } catch (SQLException e) {
+                reportError(CrudOperation.FIND_ALL_BY_ID, e);
+            }
+        }
+        List<T> entities = new ArrayList<>(found.size());
+        for (Long id : distinctIds) {
+            T entity = found.get(id);
+            if (entity != null) {
+                entities.add(entity);
+            }
+        }
+        return entities;
+    }
+
+    /**
+     * Executes the query once per batchSize IDs, binding each chunk as an array to its one parameter, e.g. "ID = ANY(?)".
+     * Each execution is reported to repository listeners as FIND_ALL_BY_ID.
+     * @param sql The SQL ps was prepared from.
+     */
+    void queryByIdChunks(Connection connection, PreparedStatement ps, String sql, List<Long> ids, ResultSetCallback callback) throws SQLException {
+        forEachIdChunk(connection, ps, ids, batchSize, (chunkIdx, chunk) -> {
+            long startNanos = startTiming();
+            int rowsRead;
+            try (ResultSet resultSet = ps.executeQuery()) {
+                rowsRead = callback.doInResultSet(resultSet);
+            }
+            recordStatement(startNanos, CrudOperation.FIND_ALL_BY_ID, sql, ps, 1, rowsRead, 0, new Object[]{chunk.toArray()});
+        });
+    }
+
+    // binds each chunk of IDs as an array to the statement's one parameter before calling back
+    private void forEachIdChunk(Connection connection, PreparedStatement ps, List<Long> ids, int chunkSize, IdChunkCallback callback) throws SQLException {
+        for (int from = 0, chunkIdx = 0; from < ids.size(); from += chunkSize, chunkIdx++) {
+            List<Long> chunk = ids.subList(from, Math.min(from + chunkSize, ids.size()));
+            Array idArray = connection.createArrayOf("BIGINT", chunk.toArray());
+            try {
+                ps.setArray(1, idArray);
+                callback.doWithChunk(chunkIdx, chunk);
+            } finally {
+                idArray.free();
+            }
+        }
+    }
+
+    protected List<T> findAll() {
+        try {
+            return readEntities();
+        } catch (SQLException e) {
+            reportError(CrudOperation.FIND_MANY, e);
+        }
+        return new ArrayList<>();
+    }
+
+    // findAll, leaving a failure to the caller
+    List<T> readEntities() throws SQLException {
+        String sql = getSqlByAnnotation(CrudOperation.FIND_MANY, this::getFindAllSql);
+        return queryAll(CrudOperation.FIND_MANY, sql, resultSet -> rowMapper(sql, resultSet));
+    }
+
+    /**
+     * Reads every row into a projection rather than an entity: only the record's columns are selected, each
+     * record component naming its column, e.g. lastName for LAST_NAME, and no relations are joined or loaded.
+     * @param projectionType A record whose component types can be read with ResultSet.getObject.
+     */
+    protected <P extends Record> List<P> findAll(Class<P> projectionType) {
+        Projection<P> projection = Projection.of(projectionType);
+        String sql = projection.toSql(getSqlByAnnotation(CrudOperation.PROJECT, this::getProjectSql));
+        try {
+            return queryAll(CrudOperation.PROJECT, sql, resultSet -> projection);
         } catch(SQLException e){
+            reportError(CrudOperation.PROJECT, e);
+        }
+        return new ArrayList<>();
+    }
+
+    private <R> List<R> queryAll(CrudOperation operationType, String sql, MapperResolver<R> mappers) throws SQLException {
+        return withConnection((connection, statements) -> {
+            List<R> rows = new ArrayList<>();
+            PreparedStatement ps = readManyPS(statements, operationType, sql);
+            ps.setFetchSize(fetchSize);
+            long startNanos = startTiming();
+            try (ResultSet resultSet = ps.executeQuery()) {
+                RowMapper<R> mapper = mappers.resolve(resultSet);
+                while (resultSet.next()) {
+                    rows.add(mapper.mapRow(resultSet));
+                }
+            }
+            recordStatement(startNanos, operationType, sql, ps, 1, rows.size(), 0, NO_PARAMETERS);
+            return rows;
+        });
+    }
+
+    /**
+     * Streams every entity in ID order from a single forward-only cursor, so the whole table can be walked in
+     * constant memory. The stream holds a statement, and in pooled mode a connection, until it is closed; close it,
+     * e.g. with try-with-resources, on the thread that opened it.
+     */
+    protected Stream<T> streamAll() {
+        String sql = getSqlByAnnotation(CrudOperation.STREAM_ALL, this::getStreamAllSql);
+        return openStream(CrudOperation.STREAM_ALL, sql, resultSet -> rowMapper(sql, resultSet));
+    }
+
+    /**
+     * Streams every row into a projection, as findAll(Class) reads them and with the cursor of streamAll.
+     */
+    protected <P extends Record> Stream<P> streamAll(Class<P> projectionType) {
+        Projection<P> projection = Projection.of(projectionType);
+        return openStream(CrudOperation.PROJECT, projection.toSql(getSqlByAnnotation(CrudOperation.PROJECT, this::getProjectSql)), resultSet -> projection);
+    }
+
+    // reported to repository listeners once closed, as one statement timed from opening to closing the stream
+    private <R> Stream<R> openStream(CrudOperation operationType, String sql, MapperResolver<R> mappers) {
+        try {
+            Connection connection = connections.acquire();
+            try {
+                // not cached: each open stream needs a cursor of its own
+                PreparedStatement ps = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                ps.setFetchSize(fetchSize);
+                long startNanos = startTiming();
+                ResultSet resultSet = ps.executeQuery();
+                RowMapper<R> mapper = mappers.resolve(resultSet);
+                long[] rowsRead = new long[1];
+                Spliterator<R> rows = new Spliterators.AbstractSpliterator<>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+                    @Override
+                    public boolean tryAdvance(Consumer<? super R> action) {
+                        try {
+                            if (!resultSet.next()) {
+                                return false;
+                            }
+                            action.accept(mapper.mapRow(resultSet));
+                            rowsRead[0]++;
+                            return true;
+                        } catch (SQLException e) {
+                            reportError(operationType, e);
+                            throw new DataException("Unable to read next entity from stream", e);
+                        }
+                    }
+                };
+                return StreamSupport.stream(rows, false).onClose(() -> {
+                    recordStatement(startNanos, operationType, sql, ps, 1, rowsRead[0], 0, NO_PARAMETERS);
+                    closeStatement(ps);
+                    connections.release(connection);
+                });
+            } catch (SQLException | RuntimeException e) {
+                connections.release(connection);
+                throw e;
+            }
+        } catch (SQLException e) {
+            reportError(operationType, e);
+            throw new DataException("Unable to stream entities", e);
+        }
+    }
+
+    /**
+     * Keyset pagination: reads up to limit entities with an ID greater than afterId, in ID order.
+     * @param afterId lastId of the previous page, or null for the first page.
+     */
+    protected Page<T> findPage(Long afterId, int limit) {
+        try {
+            return readPage(afterId, limit);
+        } catch (SQLException e) {
+            reportError(CrudOperation.FIND_PAGE, e);
+        }
+        return new Page<>(new ArrayList<>(), afterId, false);
+    }
+
+    // findPage, leaving a failure to the caller
+    Page<T> readPage(Long afterId, int limit) throws SQLException {
+        List<T> entities = withConnection((connection, statements) -> {
+            List<T> rows = new ArrayList<>(limit);
+            String sql = getSqlByAnnotation(CrudOperation.FIND_PAGE, this::getFindPageSql);
+            PreparedStatement ps = readManyPS(statements, CrudOperation.FIND_PAGE, sql);
+            long fromId = afterId == null ? Long.MIN_VALUE : afterId;
+            ps.setLong(1, fromId);
+            ps.setInt(2, limit);
+            ps.setFetchSize(Math.min(limit, fetchSize));
+            long startNanos = startTiming();
+            try (ResultSet resultSet = ps.executeQuery()) {
+                RowMapper<T> mapper = rowMapper(sql, resultSet);
+                while (resultSet.next()) {
+                    rows.add(mapper.mapRow(resultSet));
+                }
+            }
+            recordStatement(startNanos, CrudOperation.FIND_PAGE, sql, ps, 1, rows.size(), 0, new Object[]{fromId, limit});
+            return rows;
+        });
+        Long lastId = entities.isEmpty() ? afterId : getIdByAnnotation(entities.get(entities.size() - 1));
+        return new Page<>(entities, lastId, entities.size() == limit);
+    }
+
+    private void closeStatement(Statement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
             e.printStackTrace();
         }
-        return entities;
     }
 
     protected long getCount() {
         long count = 0L;
         try {
-            PreparedStatement prepStat = connection.prepareStatement(getSqlByAnnotation(CrudOperation.COUNT, this::getCountSql));
-            ResultSet resultSet = prepStat.executeQuery();
-            while(resultSet.next()) {
-                count = resultSet.getLong(1);
-            }
+            count = countRows();
         } catch (SQLException e) {
-            e.printStackTrace();
+            reportError(CrudOperation.COUNT, e);
         }
         return count;
     }
 
+    // getCount, leaving a failure to the caller
+    long countRows() throws SQLException {
+        return withConnection((connection, statements) -> {
+            long rowCount = 0L;
+            String sql = getSqlByAnnotation(CrudOperation.COUNT, this::getCountSql);
+            PreparedStatement prepStat = statements.prepare(CrudOperation.COUNT, sql);
+            long startNanos = startTiming();
+            try (ResultSet resultSet = prepStat.executeQuery()) {
+                while(resultSet.next()) {
+                    rowCount = resultSet.getLong(1);
+                }
+            }
+            recordStatement(startNanos, CrudOperation.COUNT, sql, prepStat, 1, 1, 0, NO_PARAMETERS);
+            return rowCount;
+        });
+    }
+
     protected void deleteById(T entity) {
         try {
-            PreparedStatement ps = connection.prepareStatement(getSqlByAnnotation(CrudOperation.DELETE_ONE, this::getDeleteSql));
-            ps.setLong(1, getIdByAnnotation(entity));
-            ps.executeUpdate();
+            withConnection((connection, statements) -> {
+                String sql = getSqlByAnnotation(CrudOperation.DELETE_ONE, this::getDeleteSql);
+                PreparedStatement ps = statements.prepare(CrudOperation.DELETE_ONE, sql);
+                Long id = getIdByAnnotation(entity);
+                ps.setLong(1, id);
+                evictEntity(connection, id);
+                long startNanos = startTiming();
+                List<T> deleted = executeDelete(sql, ps);
+                recordStatement(startNanos, CrudOperation.DELETE_ONE, sql, ps, 1, 0, deleted.size(), null);
+                deleted.forEach(row -> changeListeners.forEach(listener -> listener.onDeleted(row)));
+                return deleted.size();
+            });
         } catch (SQLException e) {
-            e.printStackTrace();
+            reportError(CrudOperation.DELETE_ONE, e);
         }
     }
 
     // use var args to accept an array of an unspecified number of Person objects
     @SafeVarargs
-    protected final void deleteById(T... entities) {
-        try {
-            // note: danger of SQL injection with this technique
-            Statement statement = connection.createStatement();
-            String ids = Arrays.stream(entities)
-//                    .map(e -> findIdByAnnotation(e)) // or:
-                    .map(this::getIdByAnnotation)
-                    .map(String::valueOf)
-                    .collect(Collectors.joining(","));
-            int affectedRecords = statement.executeUpdate(getSqlByAnnotation(CrudOperation.DELETE_MANY, this::getDeleteInSql).replace(":ids", ids));
-            System.out.println(affectedRecords);
+    protected final int[] deleteById(T... entities) {
+        return deleteAllById(Arrays.stream(entities)
+//                .map(e -> findIdByAnnotation(e)) // or:
+                .map(this::getIdByAnnotation)
+                .toList());
+    }
+
+    /**
+     * Deletes by ID without the entities having been loaded. The IDs are sent batchSize at a time, each chunk bound
+     * as one array parameter to the same cached statement, so the SQL neither grows with the input nor is re-parsed.
+     * @return The number of rows deleted by each chunk, in order.
+     */
+    protected int[] deleteAllById(Collection<Long> ids) {
+        try {
+            return deleteIds(ids);
         } catch (SQLException e) {
-            e.printStackTrace();
+            reportError(CrudOperation.DELETE_MANY, e);
         }
+        return new int[0];
     }
 
+    // deleteAllById, leaving a failure to the caller
+    int[] deleteIds(Collection<Long> ids) throws SQLException {
+        List<Long> distinctIds = List.copyOf(new LinkedHashSet<>(ids));
+        return withConnection((connection, statements) -> {
+            String sql = getSqlByAnnotation(CrudOperation.DELETE_MANY, this::getDeleteInSql);
+            PreparedStatement ps = statements.prepare(CrudOperation.DELETE_MANY, sql);
+            int chunkSize = batchSize;
+            int[] affectedRecords = new int[(distinctIds.size() + chunkSize - 1) / chunkSize];
+            forEachIdChunk(connection, ps, distinctIds, chunkSize, (chunkIdx, chunk) -> {
+                long startNanos = startTiming();
+                List<T> deleted = executeDelete(sql, ps);
+                affectedRecords[chunkIdx] = deleted.size();
+                recordStatement(startNanos, CrudOperation.DELETE_MANY, sql, ps, 1, 0, affectedRecords[chunkIdx], null);
+                // IDs without a row were not deleted by this call, so are not reported
+                for (T row : deleted) {
+                    evictEntity(connection, getIdByAnnotation(row));
+                    changeListeners.forEach(listener -> listener.onDeleted(row));
+                }
+            });
+            return affectedRecords;
+        });
+    }
+
+    // runs a delete that selects the rows it deletes, returning them as they were before the delete
+    private List<T> executeDelete(String sql, PreparedStatement ps) throws SQLException {
+        List<T> deleted = new ArrayList<>();
+        try (ResultSet resultSet = ps.executeQuery()) {
+            RowMapper<T> mapper = rowMapper(sql, resultSet);
+            while (resultSet.next()) {
+                deleted.add(mapper.mapRow(resultSet));
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Writes the entity's columns. Within an identity map only the columns changed since the entity was read or last
+     * written are set, by an UPDATE statement cached per set of changed columns; an unchanged entity is not written.
+     */
     protected T updateById(T entity) {
         try {
-            PreparedStatement prepStat = connection.prepareStatement(getSqlByAnnotation(CrudOperation.UPDATE, this::getUpdateByIdSql));
-            mapForUpdate(entity, prepStat);
-            prepStat.setLong(1, getIdByAnnotation(entity));
-            int rowsAffected = prepStat.executeUpdate();
-            System.out.printf("updateId: rowsAffected: %d%n", rowsAffected);
+            withConnection((connection, statements) -> updateOne(connection, statements, entity));
         } catch(SQLException e) {
-            e.printStackTrace();
+            reportError(CrudOperation.UPDATE, e);
         }
         return null;
     }
+
+    // updateById, leaving a failure to the caller
+    private int updateOne(Connection connection, StatementCache statements, T entity) throws SQLException {
+        Long id = getIdByAnnotation(entity);
+        String sql;
+        PreparedStatement ps;
+        Object[] previousColumnValues = null;
+        boolean readsPrevious = false;
+        if (getUpdateColumns() == null) {
+            sql = getSqlByAnnotation(CrudOperation.UPDATE, this::getUpdateByIdSql);
+            ps = statements.prepare(CrudOperation.UPDATE, sql);
+            mapForUpdate(entity, ps);
+            ps.setLong(1, id);
+        } else {
+            Object[] columnValues = getColumnValues(entity);
+            previousColumnValues = getSnapshot(id);
+            int dirtyColumns = getDirtyColumns(previousColumnValues, columnValues);
+            if (dirtyColumns == 0) {
+                return 0;
+            }
+            sql = updateColumnsSql(dirtyColumns);
+            // no snapshot to tell listeners what the row held, so the update reads it back as it overwrites it
+            readsPrevious = previousColumnValues == null && !changeListeners.isEmpty();
+            if (readsPrevious) {
+                sql = selectPreviousColumnsSql(sql);
+            }
+            ps = statements.prepare(CrudOperation.UPDATE, sql);
+            bindUpdatedColumns(ps, dirtyColumns, columnValues, id);
+        }
+        long startNanos = startTiming();
+        int rowsAffected;
+        if (readsPrevious) {
+            rowsAffected = 0;
+            try (ResultSet resultSet = ps.executeQuery()) {
+                while (resultSet.next()) {
+                    previousColumnValues = readPreviousColumns(resultSet);
+                    rowsAffected++;
+                }
+            }
+        } else {
+            rowsAffected = ps.executeUpdate();
+        }
+        recordStatement(startNanos, CrudOperation.UPDATE, sql, ps, 1, 0, rowsAffected, null);
+        if (rowsAffected > 0) {
+            // the updated instance is now the one later lookups should see
+            cacheWritten(connection, id, entity);
+            Object[] previous = previousColumnValues;
+            changeListeners.forEach(listener -> listener.onUpdated(entity, previous));
+        }
+        return rowsAffected;
+    }
+
+    /**
+     * Updates the changed columns of each entity, as updateById does, sending the entities that changed the same
+     * columns together in JDBC batches of batchSize. Entities with no changes are skipped.
+     * @return The number of rows updated.
+     */
+    protected int updateAll(Collection<T> entities) {
+        try {
+            return updateColumns(entities);
+        } catch (SQLException e) {
+            reportError(CrudOperation.UPDATE, e);
+        }
+        return 0;
+    }
+
+    // updateAll, leaving a failure to the caller
+    int updateColumns(Collection<T> entities) throws SQLException {
+        if (getUpdateColumns() == null) {
+            return withConnection((connection, statements) -> {
+                int rowsAffected = 0;
+                for (T entity : entities) {
+                    rowsAffected += updateOne(connection, statements, entity);
+                }
+                return rowsAffected;
+            });
+        }
+        // insertion ordered, so groups are written in the order their first entity was given
+        Map<Integer, List<PendingUpdate<T>>> updatesByDirtyColumns = new LinkedHashMap<>();
+        // entities with no snapshot to give listeners are updated one by one, each reading back its earlier columns
+        List<T> unbatched = new ArrayList<>();
+        for (T entity : entities) {
+            Long id = getIdByAnnotation(entity);
+            Object[] columnValues = getColumnValues(entity);
+            Object[] snapshot = getSnapshot(id);
+            if (snapshot == null && !changeListeners.isEmpty()) {
+                unbatched.add(entity);
+                continue;
+            }
+            int dirtyColumns = getDirtyColumns(snapshot, columnValues);
+            if (dirtyColumns != 0) {
+                updatesByDirtyColumns.computeIfAbsent(dirtyColumns, columns -> new ArrayList<>())
+                        .add(new PendingUpdate<>(id, entity, columnValues, snapshot));
+            }
+        }
+        return withConnection((connection, statements) -> {
+            int rowsAffected = 0;
+            for (T entity : unbatched) {
+                rowsAffected += updateOne(connection, statements, entity);
+            }
+            for (Map.Entry<Integer, List<PendingUpdate<T>>> group : updatesByDirtyColumns.entrySet()) {
+                int dirtyColumns = group.getKey();
+                rowsAffected += executeBatched(statements, CrudOperation.UPDATE, updateColumnsSql(dirtyColumns),
+                        group.getValue(), (update, ps) -> bindUpdatedColumns(ps, dirtyColumns, update.columnValues(), update.id()));
+                for (PendingUpdate<T> update : group.getValue()) {
+                    cacheWritten(connection, update.id(), update.entity());
+                    changeListeners.forEach(listener -> listener.onUpdated(update.entity(), update.previousColumnValues()));
+                }
+            }
+            return rowsAffected;
+        });
+    }
+
+    /**
+     * Executes the statement once per item, bound by the binder, in JDBC batches of batchSize.
+     * @return The number of rows written.
+     */
+    <E> int executeBatched(StatementCache statements, CrudOperation operationType, String sql, Collection<E> items,
+                           StatementBinder<E> binder) throws SQLException {
+        PreparedStatement ps = statements.prepare(operationType, sql);
+        int batchSize = this.batchSize;
+        int rowsAffected = 0;
+        try {
+            int batched = 0;
+            for (E item : items) {
+                binder.bind(item, ps);
+                ps.addBatch();
+                if (++batched == batchSize) {
+                    rowsAffected += executeUpdateBatch(ps, operationType, sql, batched);
+                    batched = 0;
+                }
+            }
+            if (batched > 0) {
+                rowsAffected += executeUpdateBatch(ps, operationType, sql, batched);
+            }
+        } catch (SQLException e) {
+            clearBatch(ps);
+            throw e;
+        }
+        return rowsAffected;
+    }
+
+    private int executeUpdateBatch(PreparedStatement ps, CrudOperation operationType, String sql, int batched) throws SQLException {
+        long startNanos = startTiming();
+        int rowsAffected = sumUpdateCounts(ps.executeBatch());
+        recordStatement(startNanos, operationType, sql, ps, batched, 0, rowsAffected, null);
+        return rowsAffected;
+    }
+
+    private static int sumUpdateCounts(int[] updateCounts) {
+        // drivers may report SUCCESS_NO_INFO rather than a count
+        return Arrays.stream(updateCounts).filter(count -> count > 0).sum();
+    }
+
+    // the update columns as last read or written within the identity map; null outside one
+    private Object[] getSnapshot(Long id) {
+        IdentityMap identityMap = IdentityMap.current();
+        return identityMap == null ? null : identityMap.getSnapshot(metadata.getEntityType(), id);
+    }
+
+    // columns differing from the snapshot; every column when there is no snapshot to compare with
+    private int getDirtyColumns(Object[] snapshot, Object[] columnValues) {
+        if (snapshot == null) {
+            return (1 << columnValues.length) - 1;
+        }
+        int dirtyColumns = 0;
+        for (int i = 0; i < columnValues.length; i++) {
+            if (!isSameValue(snapshot[i], columnValues[i])) {
+                dirtyColumns |= 1 << i;
+            }
+        }
+        return dirtyColumns;
+    }
+
+    private static boolean isSameValue(Object snapshotValue, Object value) {
+        // 1000 and 1000.00 are the same salary
+        if (snapshotValue instanceof BigDecimal snapshotDecimal && value instanceof BigDecimal decimal) {
+            return snapshotDecimal.compareTo(decimal) == 0;
+        }
+        return Objects.equals(snapshotValue, value);
+    }
+
+    private String updateColumnsSql(int dirtyColumns) {
+        return updateSqlByColumns.computeIfAbsent(dirtyColumns, columns -> {
+            String[] columnNames = getUpdateColumns();
+            StringJoiner assignments = new StringJoiner(", ");
+            for (int i = 0; i < columnNames.length; i++) {
+                if ((columns & (1 << i)) != 0) {
+                    assignments.add(columnNames[i] + "=?");
+                }
+            }
+            return getSqlByAnnotation(CrudOperation.UPDATE, this::getUpdateByIdSql).replace(":columns", assignments.toString());
+        });
+    }
+
+    // the update, returning the update columns as the row held them before it, e.g. for the update of FIRST_NAME:
+    // SELECT FIRST_NAME, LAST_NAME, DOB, SALARY FROM OLD TABLE (UPDATE PEOPLE SET FIRST_NAME=? WHERE ID=?)
+    private String selectPreviousColumnsSql(String updateSql) {
+        String update = updateSql.strip();
+        if (update.endsWith(";")) {
+            update = update.substring(0, update.length() - 1);
+        }
+        return "SELECT " + String.join(", ", getUpdateColumns()) + " FROM OLD TABLE (" + update + ");";
+    }
+
+    private Object[] readPreviousColumns(ResultSet resultSet) throws SQLException {
+        Object[] previousColumnValues = new Object[getUpdateColumns().length];
+        for (int i = 0; i < previousColumnValues.length; i++) {
+            previousColumnValues[i] = resultSet.getObject(i + 1);
+        }
+        return previousColumnValues;
+    }
+
+    private static void bindUpdatedColumns(PreparedStatement ps, int dirtyColumns, Object[] columnValues, Long id) throws SQLException {
+        int paramIdx = 1;
+        for (int i = 0; i < columnValues.length; i++) {
+            if ((dirtyColumns & (1 << i)) != 0) {
+                ps.setObject(paramIdx++, columnValues[i]);
+            }
+        }
+        ps.setLong(paramIdx, id);
+    }
+
+    /**
+     * @return A copy of the entity sharing no mutable state with it, for the entity cache; the entity itself by
+     * default, which suits immutable entities.
+     */
+    T copyEntity(T entity) {
+        return entity;
+    }
+
+    /**
+     * @return The entities the entity's row refers to, or is referred to by, e.g. by foreign keys, which must be saved
+     * to the same database as it; none by default.
+     */
+    Collection<T> related(T entity) {
+        return List.of();
+    }
+
+    protected void preSave(T entity) {}
     protected void postSave(long id, T entity) {}
     protected String getSaveSql() {throw new RuntimeException("SQL not defined");}
+    /**
+     * @return The SQL for upsert, e.g. a MERGE keyed on ID. The SQL must contain the save SQL's parameters, in the
+     * same order, followed by one SQL parameter for the entity's ID.
+     */
+    protected String getUpsertSql() {throw new RuntimeException("SQL not defined");}
+    /**
+     * @return The INSERT for a save numbered by an ID generator: the save's columns, then the ID.
+     */
+    protected String getSaveWithIdSql() {throw new RuntimeException("SQL not defined");}
+    /**
+     * @return The SQL for updateById. Where getUpdateColumns is defined, the SQL has a ":columns" placeholder for the
+     * "COLUMN=?" assignments of the columns being written, followed by one SQL parameter for the entity's ID.
+     */
     protected String getUpdateByIdSql() { throw new RuntimeException("SQL not defined");}
     protected String getFindByIdSql() {throw new RuntimeException("SQL not defined");}
     protected String getFindAllSql() {throw new RuntimeException("SQL not defined");}
+    /**
+     * @return The SQL for findAllById, returning one row per entity. The SQL must contain one SQL parameter,
+     * bound to an array of IDs, e.g. "WHERE ID = ANY(?)".
+     */
+    protected String getFindAllByIdSql() {throw new RuntimeException("SQL not defined");}
+    protected String getStreamAllSql() {throw new RuntimeException("SQL not defined");}
+    /**
+     * @return The SQL for findAll and streamAll of a projection, with a ":columns" placeholder for the select list,
+     * e.g. "SELECT :columns FROM PEOPLE ORDER BY ID".
+     */
+    protected String getProjectSql() {throw new RuntimeException("SQL not defined");}
+    /**
+     * @return The SQL for one keyset page. The SQL must order by ID and contain two SQL parameters:
+     * the ID to read after, then the maximum number of rows.
+     */
+    protected String getFindPageSql() {throw new RuntimeException("SQL not defined");}
     protected String getCountSql() {throw new RuntimeException("SQL not defined");}
+    /**
+     * @return The SQL for deleteById. Deletes select the rows they delete, with the columns compileRowMapper reads,
+     * so that only rows which existed are reported to change listeners, e.g.
+     * "SELECT ... FROM OLD TABLE (DELETE FROM PEOPLE WHERE ID=?)". The SQL must contain one SQL parameter: the ID.
+     */
     protected String getDeleteSql() {throw new RuntimeException("SQL not defined");}
+    /**
+     * @return The SQL for deleteAllById, selecting the rows it deletes as getDeleteSql does. The SQL must contain one
+     * SQL parameter, bound to an array of IDs, e.g. "WHERE ID = ANY(?)".
+     */
     protected String getDeleteInSql() {throw new RuntimeException("SQL not defined");}
-    abstract PreparedStatement mapForUpdate(T entity, PreparedStatement prepStat) throws SQLException;
+    /**
+     * Binds a full update; only used where getUpdateColumns is not defined.
+     */
+    PreparedStatement mapForUpdate(T entity, PreparedStatement prepStat) throws SQLException {
+        throw new RuntimeException("Update not defined");
+    }
+
+    /**
+     * @return Names of the columns updateById may write, at most 31; null to bind every update with mapForUpdate.
+     */
+    String[] getUpdateColumns() {
+        return null;
+    }
+
+    /**
+     * @return The entity's values for getUpdateColumns, in the same order and as they are bound to the statement.
+     */
+    Object[] getColumnValues(T entity) {
+        throw new RuntimeException("Update columns not defined");
+    }
     abstract void mapForSave(T entity, PreparedStatement ps) throws SQLException;
 
     /**
-     * @param resultSet Result set
-     * @return Returns a String that represents the SQL needed to retrieve one entity.
-     * The SQL must contain one SQL parameter, i.e. "?", that will bind to the entity's ID.
+     * Fills in the relations that the read's own statement didn't, on the connection that read the entities;
+     * does nothing by default.
+     * @param operationType FIND_ONE for findById, FIND_ALL_BY_ID for findAllById
+     */
+    void loadRelations(Connection connection, StatementCache statements, CrudOperation operationType, List<T> entities) throws SQLException {}
+
+    /**
+     * Called once per distinct query, with the metadata of its first result set.
+     * @param metaData Column layout of the query
+     * @return A mapper reading the entity at the current row by fixed column index. Queries that return one row per
+     * entity may read from forward-only cursors, so the mapper must only move the result set forward, and only to
+     * fold further rows of the same entity.
      */
-    abstract T extractEntityFromResultSet(ResultSet resultSet) throws SQLException;
+    abstract RowMapper<T> compileRowMapper(ResultSetMetaData metaData) throws SQLException;
 
 }
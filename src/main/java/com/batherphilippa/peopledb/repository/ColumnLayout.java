@@ -0,0 +1,50 @@
+package com.batherphilippa.peopledb.repository;
+
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The column labels of one query, read from its metadata once so row mappers can be compiled against fixed indices.
+ */
+final class ColumnLayout {
+
+    private final Map<String, Integer> indexByLabel;
+
+    private ColumnLayout(Map<String, Integer> indexByLabel) {
+        this.indexByLabel = indexByLabel;
+    }
+
+    static ColumnLayout of(ResultSetMetaData metaData) throws SQLException {
+        int columnCount = metaData.getColumnCount();
+        Map<String, Integer> indexByLabel = new HashMap<>(columnCount * 2);
+        for (int colIndex = 1; colIndex <= columnCount; colIndex++) {
+            // first occurrence wins, as with ResultSet.findColumn
+            indexByLabel.putIfAbsent(metaData.getColumnLabel(colIndex).toUpperCase(), colIndex);
+        }
+        return new ColumnLayout(indexByLabel);
+    }
+
+    /**
+     * @param aliasPrefix Prefix shared by the columns of one joined table, e.g. "HOME_"; empty for unaliased columns.
+     * @param columns Column names, the first being the table's ID.
+     * @return The index of each column in the order given, or null if the query does not select the prefixed ID,
+     * i.e. the table is not part of this query.
+     * @throws SQLException If the prefixed ID is selected but another of the columns is not.
+     */
+    int[] resolve(String aliasPrefix, String... columns) throws SQLException {
+        if (!indexByLabel.containsKey(aliasPrefix + columns[0])) {
+            return null;
+        }
+        int[] indices = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            Integer colIndex = indexByLabel.get(aliasPrefix + columns[i]);
+            if (colIndex == null) {
+                throw new SQLException(String.format("Column not found for alias: %s", aliasPrefix + columns[i]));
+            }
+            indices[i] = colIndex;
+        }
+        return indices;
+    }
+}
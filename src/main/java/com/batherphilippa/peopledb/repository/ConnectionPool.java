@@ -0,0 +1,155 @@
+package com.batherphilippa.peopledb.repository;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small fixed-size pool over a DataSource. A thread leases one connection, together with its statement cache,
+ * for the length of an operation; repositories built on the pool can therefore be shared by many threads.
+ * Connections are opened lazily, up to maxSize, and reused in preference to opening new ones.
+ */
+public class ConnectionPool implements ConnectionProvider, AutoCloseable {
+    private static final int DEFAULT_MAX_SIZE = 10;
+    private static final Duration DEFAULT_ACQUIRE_TIMEOUT = Duration.ofSeconds(30);
+
+    private final DataSource dataSource;
+    private final int maxSize;
+    // a permit per connection that may be leased at once
+    private final Semaphore permits;
+    private final BlockingQueue<Connection> idle = new LinkedBlockingQueue<>();
+    private final Map<Connection, StatementCache> statementCaches = new ConcurrentHashMap<>();
+    private final ThreadLocal<Lease> leases = new ThreadLocal<>();
+    private volatile Duration acquireTimeout = DEFAULT_ACQUIRE_TIMEOUT;
+    private volatile boolean closed;
+
+    private static final class Lease {
+        private final Connection connection;
+        private int depth = 1;
+
+        private Lease(Connection connection) {
+            this.connection = connection;
+        }
+    }
+
+    public ConnectionPool(DataSource dataSource) {
+        this(dataSource, DEFAULT_MAX_SIZE);
+    }
+
+    public ConnectionPool(DataSource dataSource, int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1.");
+        }
+        this.dataSource = dataSource;
+        this.maxSize = maxSize;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    public void setAcquireTimeout(Duration acquireTimeout) {
+        this.acquireTimeout = acquireTimeout;
+    }
+
+    @Override
+    public Connection acquire() throws SQLException {
+        Lease lease = leases.get();
+        if (lease != null) {
+            // re-entrant: nested operations share the thread's connection
+            lease.depth++;
+            return lease.connection;
+        }
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        try {
+            if (!permits.tryAcquire(acquireTimeout.toNanos(), TimeUnit.NANOSECONDS)) {
+                throw new SQLTimeoutException(String.format("Timed out after %s waiting for one of %d connections", acquireTimeout, maxSize));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        }
+        try {
+            Connection connection = idle.poll();
+            if (connection != null && connection.isClosed()) {
+                closeQuietly(connection);
+                connection = null;
+            }
+            if (connection == null) {
+                connection = dataSource.getConnection();
+                statementCaches.put(connection, new StatementCache(connection));
+            }
+            leases.set(new Lease(connection));
+            return connection;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public StatementCache statementCache(Connection connection) {
+        return statementCaches.get(connection);
+    }
+
+    @Override
+    public void release(Connection connection) {
+        Lease lease = leases.get();
+        if (lease == null || lease.connection != connection) {
+            throw new IllegalStateException("Connection is not leased to this thread");
+        }
+        if (--lease.depth > 0) {
+            return;
+        }
+        leases.remove();
+        if (closed) {
+            closeQuietly(connection);
+        } else {
+            idle.offer(connection);
+        }
+        permits.release();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getLeasedCount() {
+        return maxSize - permits.availablePermits();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Closes idle connections now and leased connections as they are released.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Connection connection;
+        while ((connection = idle.poll()) != null) {
+            closeQuietly(connection);
+        }
+    }
+
+    private void closeQuietly(Connection connection) {
+        StatementCache statementCache = statementCaches.remove(connection);
+        if (statementCache != null) {
+            statementCache.clear();
+        }
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.batherphilippa.peopledb.repository;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Where a repository gets the connection, and that connection's cached statements, for each operation.
+ * Every acquire must be matched by a release on the same thread. Acquiring again on a thread that already holds
+ * a connection returns that same connection, so nested operations (e.g. saving a person's address while saving
+ * the person) run on one connection.
+ */
+public interface ConnectionProvider {
+
+    Connection acquire() throws SQLException;
+
+    StatementCache statementCache(Connection connection);
+
+    void release(Connection connection);
+
+    /**
+     * @return A provider that hands out the one connection to every caller; only safe for one thread at a time.
+     * The connection's statements are cached by the provider, so give repositories on one connection one provider
+     * to share them.
+     */
+    static ConnectionProvider of(Connection connection) {
+        StatementCache statementCache = new StatementCache(connection);
+        return new ConnectionProvider() {
+            @Override
+            public Connection acquire() {
+                return connection;
+            }
+
+            @Override
+            public StatementCache statementCache(Connection c) {
+                return statementCache;
+            }
+
+            @Override
+            public void release(Connection c) {}
+        };
+    }
+}
@@ -0,0 +1,269 @@
+package com.batherphilippa.peopledb.repository;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Second-level cache in front of findById, shared by every repository (and thread) it is given to.
+ * Bounded by a maximum total weight: one per entry by default, or e.g. an estimate of each entity's size in bytes
+ * when a weigher is supplied. Entries optionally expire a fixed time after they were written.
+ * Repositories cache a copy of each entity they read outside a transaction and hand every lookup a copy of its own,
+ * so callers may change what they are given; writes invalidate the entry until it is read again.
+ */
+public class EntityCache<T> {
+
+    public enum EvictionPolicy {
+        /**
+         * Evicts the least recently used entry to make room for any new one.
+         */
+        LRU,
+        /**
+         * LRU eviction guarded by a TinyLFU admission filter: a new entry only displaces the least recently used
+         * one if its key has been requested more often, which keeps one-off reads from flushing the hot set.
+         */
+        TINY_LFU
+    }
+
+    private record Entry<T>(T value, long weight, long expiresAt) {}
+
+    // generations are kept per stripe of keys rather than per key, so they take fixed memory; keys sharing a stripe
+    // only ever cost each other a dropped put
+    private static final int GENERATION_STRIPES = 1024;
+
+    private final long maxWeight;
+    private final ToLongFunction<T> weigher;
+    private final long ttlNanos;
+    private final LongSupplier nanoClock;
+    private final FrequencySketch sketch;
+    // bumped by every invalidate of a key in the stripe
+    private final long[] generations = new long[GENERATION_STRIPES];
+    // access order: iteration starts at the least recently used entry
+    private final LinkedHashMap<Long, Entry<T>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long rejections;
+
+    /**
+     * An LRU cache of at most maxEntries entities that never expire.
+     */
+    public EntityCache(long maxEntries) {
+        this(maxEntries, entity -> 1L, Duration.ZERO, EvictionPolicy.LRU);
+    }
+
+    /**
+     * @param maxWeight Upper bound of the summed weights of all entries.
+     * @param weigher Weight of one entity, e.g. its estimated size in bytes.
+     * @param ttl How long after being written an entry expires; zero for never.
+     */
+    public EntityCache(long maxWeight, ToLongFunction<T> weigher, Duration ttl, EvictionPolicy evictionPolicy) {
+        this(maxWeight, weigher, ttl, evictionPolicy, System::nanoTime);
+    }
+
+    EntityCache(long maxWeight, ToLongFunction<T> weigher, Duration ttl, EvictionPolicy evictionPolicy, LongSupplier nanoClock) {
+        if (maxWeight < 1) {
+            throw new IllegalArgumentException("Max weight must be at least 1.");
+        }
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.ttlNanos = ttl.toNanos();
+        this.nanoClock = nanoClock;
+        this.sketch = evictionPolicy == EvictionPolicy.TINY_LFU ? new FrequencySketch(maxWeight) : null;
+    }
+
+    synchronized Optional<T> get(Long id) {
+        if (sketch != null) {
+            sketch.increment(id);
+        }
+        Entry<T> entry = entries.get(id);
+        if (entry != null && isExpired(entry)) {
+            remove(id);
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return Optional.empty();
+        }
+        hits++;
+        return Optional.of(entry.value());
+    }
+
+    /**
+     * @return The generation of the key, to take before reading the entity that is later put.
+     */
+    synchronized long generation(Long id) {
+        return generations[stripe(id)];
+    }
+
+    /**
+     * Caches the entity only if the key was not invalidated since the generation was taken, as it was then read
+     * before a write that may have changed it.
+     */
+    synchronized void put(Long id, T entity, long generation) {
+        if (generations[stripe(id)] == generation) {
+            put(id, entity);
+        }
+    }
+
+    synchronized void put(Long id, T entity) {
+        long entryWeight = weigher.applyAsLong(entity);
+        if (entryWeight > maxWeight) {
+            remove(id);
+            return;
+        }
+        Entry<T> previous = entries.get(id);
+        if (previous == null && sketch != null && !admit(id, entryWeight)) {
+            rejections++;
+            return;
+        }
+        Entry<T> entry = new Entry<>(entity, entryWeight, ttlNanos == 0 ? Long.MAX_VALUE : nanoClock.getAsLong() + ttlNanos);
+        previous = entries.put(id, entry);
+        weight += entryWeight - (previous == null ? 0 : previous.weight());
+        evictOverWeight(id);
+    }
+
+    synchronized void invalidate(Long id) {
+        generations[stripe(id)]++;
+        remove(id);
+    }
+
+    public synchronized void invalidateAll() {
+        for (int i = 0; i < generations.length; i++) {
+            generations[i]++;
+        }
+        entries.clear();
+        weight = 0;
+    }
+
+    private static int stripe(Long id) {
+        return Long.hashCode(id * 0x9E3779B97F4A7C15L) & (GENERATION_STRIPES - 1);
+    }
+
+    // only admit a new key if it is requested more often than every entry it would push out
+    private boolean admit(Long id, long entryWeight) {
+        int candidateFrequency = sketch.frequency(id);
+        long freed = maxWeight - weight;
+        Iterator<Map.Entry<Long, Entry<T>>> iterator = entries.entrySet().iterator();
+        while (freed < entryWeight && iterator.hasNext()) {
+            Map.Entry<Long, Entry<T>> victim = iterator.next();
+            if (!isExpired(victim.getValue()) && sketch.frequency(victim.getKey()) >= candidateFrequency) {
+                return false;
+            }
+            freed += victim.getValue().weight();
+        }
+        return true;
+    }
+
+    private void evictOverWeight(Long keep) {
+        Iterator<Map.Entry<Long, Entry<T>>> iterator = entries.entrySet().iterator();
+        while (weight > maxWeight && iterator.hasNext()) {
+            Map.Entry<Long, Entry<T>> eldest = iterator.next();
+            if (eldest.getKey().equals(keep)) {
+                continue;
+            }
+            iterator.remove();
+            weight -= eldest.getValue().weight();
+            evictions++;
+        }
+    }
+
+    private void remove(Long id) {
+        Entry<T> removed = entries.remove(id);
+        if (removed != null) {
+            weight -= removed.weight();
+        }
+    }
+
+    private boolean isExpired(Entry<T> entry) {
+        return nanoClock.getAsLong() - entry.expiresAt() > 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * @return How many new entries the TinyLFU filter turned away.
+     */
+    public synchronized long getRejectionCount() {
+        return rejections;
+    }
+
+    public synchronized double getHitRate() {
+        long requests = hits + misses;
+        return requests == 0 ? 0.0 : (double) hits / requests;
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters estimating how often each key was requested. Counters are halved
+     * periodically so that popularity fades with time.
+     */
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final long[] SEEDS = {0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0x27D4EB2F165667C5L};
+
+        private final byte[] counters;
+        private final int mask;
+        private final int resetAfter;
+        private int samples;
+
+        private FrequencySketch(long expectedEntries) {
+            int width = Integer.highestOneBit((int) Math.max(16, Math.min(expectedEntries, 1 << 20)) - 1) << 1;
+            this.counters = new byte[width * DEPTH];
+            this.mask = width - 1;
+            this.resetAfter = width * 10;
+        }
+
+        private void increment(Long key) {
+            for (int row = 0; row < DEPTH; row++) {
+                int idx = index(key, row);
+                if (counters[idx] < MAX_COUNT) {
+                    counters[idx]++;
+                }
+            }
+            if (++samples == resetAfter) {
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] >>= 1;
+                }
+                samples /= 2;
+            }
+        }
+
+        private int frequency(Long key) {
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < DEPTH; row++) {
+                frequency = Math.min(frequency, counters[index(key, row)]);
+            }
+            return frequency;
+        }
+
+        private int index(Long key, int row) {
+            long hash = (key * SEEDS[row]) ^ (key >>> 29);
+            hash ^= hash >>> 32;
+            return row * (mask + 1) + ((int) hash & mask);
+        }
+    }
+}
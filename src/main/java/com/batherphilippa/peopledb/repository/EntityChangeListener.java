@@ -0,0 +1,32 @@
+package com.batherphilippa.peopledb.repository;
+
+/**
+ * Told of each row a repository writes, once its statement has executed. Called on the writing thread, inside its
+ * transaction: a later rollback is not reported.
+ */
+public interface EntityChangeListener<T> {
+
+    /**
+     * The entity's row was inserted.
+     */
+    default void onSaved(T entity) {}
+
+    /**
+     * The entity's row was written whole by upsert: either inserted, or replacing a row whose values are not known.
+     */
+    default void onUpserted(T entity) {}
+
+    /**
+     * The entity's update columns were written by updateById or updateAll.
+     * @param previousColumnValues The update columns as they were before the write, in getUpdateColumns order, taken
+     * from the identity map's snapshot or, outside one, read back by the update; null when the repository has no
+     * update columns.
+     */
+    default void onUpdated(T entity, Object[] previousColumnValues) {}
+
+    /**
+     * The entity's row was deleted. Given as read back from the row by the delete, so only rows that existed are
+     * reported, and only with the columns and relations the delete SQL selects.
+     */
+    default void onDeleted(T entity) {}
+}
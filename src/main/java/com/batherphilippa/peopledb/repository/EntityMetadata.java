@@ -0,0 +1,124 @@
+package com.batherphilippa.peopledb.repository;
+
+import com.batherphilippa.peopledb.annotation.Id;
+import com.batherphilippa.peopledb.annotation.SQL;
+import com.batherphilippa.peopledb.domain.CrudOperation;
+import com.batherphilippa.peopledb.exception.NoIdFoundException;
+import com.batherphilippa.peopledb.exception.UnableToSetIdFieldException;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Everything the repository would otherwise look up by reflection on each call: the SQL declared through
+ * @SQL annotations for each CrudOperation and method handles for reading and writing the entity's @Id field.
+ * Built once per repository class and shared by all of its instances.
+ */
+final class EntityMetadata<T> {
+
+    private static final ClassValue<EntityMetadata<?>> REGISTRY = new ClassValue<>() {
+        @Override
+        protected EntityMetadata<?> computeValue(Class<?> repositoryType) {
+            return new EntityMetadata<>(repositoryType);
+        }
+    };
+
+    private final Class<T> entityType;
+    private final Map<CrudOperation, String> sqlByOperation;
+    // (Object)Long and (Object,Long)void, or null if the entity has no @Id field
+    private final MethodHandle idGetter;
+    private final MethodHandle idSetter;
+
+    @SuppressWarnings("unchecked")
+    static <T> EntityMetadata<T> of(Class<?> repositoryType) {
+        return (EntityMetadata<T>) REGISTRY.get(repositoryType);
+    }
+
+    @SuppressWarnings("unchecked")
+    private EntityMetadata(Class<?> repositoryType) {
+        this.entityType = (Class<T>) resolveEntityType(repositoryType);
+        this.sqlByOperation = Collections.unmodifiableMap(resolveSql(repositoryType));
+        Field idField = Arrays.stream(entityType.getDeclaredFields())
+                .filter(f -> f.isAnnotationPresent(Id.class))
+                .findFirst()
+                .orElse(null);
+        if (idField == null) {
+            this.idGetter = null;
+            this.idSetter = null;
+        } else {
+            try {
+                // overrides the field's access modifier once, rather than on every call
+                idField.setAccessible(true);
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                this.idGetter = lookup.unreflectGetter(idField).asType(MethodType.methodType(Long.class, Object.class));
+                this.idSetter = lookup.unreflectSetter(idField).asType(MethodType.methodType(void.class, Object.class, Long.class));
+            } catch (IllegalAccessException e) {
+                throw new UnableToSetIdFieldException("Unable to access ID field of " + entityType.getName());
+            }
+        }
+    }
+
+    private static Class<?> resolveEntityType(Class<?> repositoryType) {
+        for (Class<?> type = repositoryType; type != null; type = type.getSuperclass()) {
+            Type superType = type.getGenericSuperclass();
+            if (superType instanceof ParameterizedType parameterized && parameterized.getRawType() == CRUDRepository.class) {
+                Type entityType = parameterized.getActualTypeArguments()[0];
+                if (entityType instanceof Class<?> entityClass) {
+                    return entityClass;
+                }
+            }
+        }
+        throw new IllegalArgumentException("Unable to resolve entity type of " + repositoryType.getName());
+    }
+
+    private static Map<CrudOperation, String> resolveSql(Class<?> repositoryType) {
+        Map<CrudOperation, String> sqlByOperation = new EnumMap<>(CrudOperation.class);
+        for (Method method : repositoryType.getDeclaredMethods()) {
+            // handles both a single @SQL and several collected into @MultiSQL
+            for (SQL sql : method.getAnnotationsByType(SQL.class)) {
+                sqlByOperation.putIfAbsent(sql.operationType(), sql.value());
+            }
+        }
+        return sqlByOperation;
+    }
+
+    Class<T> getEntityType() {
+        return entityType;
+    }
+
+    Optional<String> getSql(CrudOperation operationType) {
+        return Optional.ofNullable(sqlByOperation.get(operationType));
+    }
+
+    Long getId(T entity) {
+        if (idGetter == null) {
+            throw new NoIdFoundException("No ID annotated field found.");
+        }
+        try {
+            return (Long) idGetter.invokeExact((Object) entity);
+        } catch (Throwable e) {
+            throw new NoIdFoundException("Unable to read ID field: " + e.getMessage());
+        }
+    }
+
+    void setId(T entity, Long id) {
+        if (idSetter == null) {
+            throw new NoIdFoundException("No ID annotated field found.");
+        }
+        try {
+            idSetter.invokeExact((Object) entity, id);
+        } catch (Throwable e) {
+            throw new UnableToSetIdFieldException("Unable to set ID field exception.");
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.batherphilippa.peopledb.repository;
+
+/**
+ * How a relation is read along with the entity that owns it.
+ */
+public enum FetchStrategy {
+    /**
+     * In the owner's own statement, by an outer join. A collection repeats the owner's columns once per element,
+     * so it is only joined when reading a single owner; reads of many owners fall back to BATCH.
+     */
+    JOIN,
+    /**
+     * By a query of its own for each owner.
+     */
+    SELECT,
+    /**
+     * By one query for every owner read together, e.g. by findAllById; the same as SELECT for a single owner.
+     */
+    BATCH,
+    /**
+     * Not read with the owner, but on its first access: by one query for every owner the same read returned,
+     * as BATCH. The relation is read on the thread accessing it, so the repository must still be usable then.
+     */
+    LAZY
+}
@@ -0,0 +1,94 @@
+package com.batherphilippa.peopledb.repository;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * First-level cache for one unit of work: while open on a thread, repositories return the same instance for
+ * repeated findById calls on that thread instead of querying again. Saved and updated entities are put into the
+ * map, deleted ones are removed. Close it, e.g. with try-with-resources, when the unit of work ends.
+ * The map also keeps a snapshot of each entity's columns as last read or written, so updates within the unit of
+ * work only write the columns that changed.
+ */
+public final class IdentityMap implements AutoCloseable {
+
+    private static final ThreadLocal<IdentityMap> CURRENT = new ThreadLocal<>();
+
+    private final Map<Class<?>, Map<Long, Object>> entitiesByType = new HashMap<>();
+    private final Map<Class<?>, Map<Long, Object[]>> snapshotsByType = new HashMap<>();
+    // restored on close, so identity maps can nest
+    private final IdentityMap enclosing;
+
+    private IdentityMap(IdentityMap enclosing) {
+        this.enclosing = enclosing;
+    }
+
+    /**
+     * @return A new, empty identity map bound to the calling thread until it is closed.
+     */
+    public static IdentityMap open() {
+        IdentityMap identityMap = new IdentityMap(CURRENT.get());
+        CURRENT.set(identityMap);
+        return identityMap;
+    }
+
+    /**
+     * @return The identity map open on the calling thread, or null if there is none.
+     */
+    static IdentityMap current() {
+        return CURRENT.get();
+    }
+
+    <T> T get(Class<T> type, Long id) {
+        Map<Long, Object> entities = entitiesByType.get(type);
+        return entities == null ? null : type.cast(entities.get(id));
+    }
+
+    <T> void put(Class<T> type, Long id, T entity) {
+        entitiesByType.computeIfAbsent(type, t -> new HashMap<>()).put(id, entity);
+    }
+
+    void remove(Class<?> type, Long id) {
+        Map<Long, Object> entities = entitiesByType.get(type);
+        if (entities != null) {
+            entities.remove(id);
+        }
+        Map<Long, Object[]> snapshots = snapshotsByType.get(type);
+        if (snapshots != null) {
+            snapshots.remove(id);
+        }
+    }
+
+    /**
+     * @return The entity's column values as last read or written in this unit of work, or null if not known.
+     */
+    Object[] getSnapshot(Class<?> type, Long id) {
+        Map<Long, Object[]> snapshots = snapshotsByType.get(type);
+        return snapshots == null ? null : snapshots.get(id);
+    }
+
+    void putSnapshot(Class<?> type, Long id, Object[] columnValues) {
+        snapshotsByType.computeIfAbsent(type, t -> new HashMap<>()).put(id, columnValues);
+    }
+
+    public int size() {
+        return entitiesByType.values().stream().mapToInt(Map::size).sum();
+    }
+
+    public void clear() {
+        entitiesByType.clear();
+        snapshotsByType.clear();
+    }
+
+    @Override
+    public void close() {
+        if (CURRENT.get() != this) {
+            throw new IllegalStateException("Identity map is not the one open on this thread");
+        }
+        if (enclosing == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(enclosing);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.batherphilippa.peopledb.repository;
+
+import java.util.List;
+
+/**
+ * One page of a keyset paginated read.
+ * @param content Entities in ascending ID order.
+ * @param lastId ID of the last entity in the page; pass it as afterId to fetch the next page.
+ * @param hasNext False once the page came back short, i.e. there are no more rows.
+ */
+public record Page<T>(List<T> content, Long lastId, boolean hasNext) {
+}
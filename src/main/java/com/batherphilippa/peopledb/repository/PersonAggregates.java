@@ -0,0 +1,275 @@
+package com.batherphilippa.peopledb.repository;
+
+import com.batherphilippa.peopledb.domain.Address;
+import com.batherphilippa.peopledb.domain.Person;
+import com.batherphilippa.peopledb.domain.Region;
+import com.batherphilippa.peopledb.exception.DataException;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Head count and salary totals of the PEOPLE table, overall and per home address region, read in O(1) rather than
+ * by a scan. Seeded by one aggregate query, then kept up to date by applying each write of the repository it listens
+ * to as a delta. Writes it is not told of, i.e. by other repositories, outside the application, or rolled back, are
+ * only picked up by reconcile.
+ * <p>
+ * Nothing is kept per person: an update is applied from the salary in the identity map's snapshot, or else the salary
+ * the update read back, and a delete from the row the delete read back. An upsert, whose earlier values are not known,
+ * marks the aggregates stale, and the next read reconciles them first.
+ */
+public final class PersonAggregates implements EntityChangeListener<Person> {
+
+    private static final String SEED_SQL = """
+            SELECT A.REGION, COUNT(*) AS PEOPLE, COUNT(P.SALARY) AS SALARIED, SUM(P.SALARY) AS TOTAL_SALARY
+            FROM PEOPLE AS P
+            LEFT OUTER JOIN ADDRESSES AS A ON P.HOME_ADDRESS = A.ID
+            GROUP BY A.REGION;
+            """;
+
+    private final PersonRepository repository;
+    private final Object reconcileLock = new Object();
+    // guarded by this, as are the fields below
+    private Tally tally = new Tally();
+    // set by an upsert, which cannot be applied as a delta, until the next reconcile
+    private boolean stale;
+    // changes made while a reconcile reads the table, replayed onto its result; null when not reconciling
+    private List<Consumer<Tally>> pendingChanges;
+
+    /**
+     * @param salaried Number of people with a salary, i.e. those totalSalary is the sum over.
+     */
+    private record Summary(long count, long salaried, BigDecimal totalSalary) {
+        private static final Summary EMPTY = new Summary(0, 0, BigDecimal.ZERO);
+
+        Summary plus(BigDecimal salary, int sign) {
+            return salary == null
+                    ? new Summary(count + sign, salaried, totalSalary)
+                    : new Summary(count + sign, salaried + sign, sign > 0 ? totalSalary.add(salary) : totalSalary.subtract(salary));
+        }
+
+        Summary plus(Summary other) {
+            return new Summary(count + other.count, salaried + other.salaried, totalSalary.add(other.totalSalary));
+        }
+
+        // BigDecimal.equals would tell 100 from 100.00
+        boolean isSameAs(Summary other) {
+            return count == other.count && salaried == other.salaried && totalSalary.compareTo(other.totalSalary) == 0;
+        }
+    }
+
+    private static final class Tally {
+        private Summary all = Summary.EMPTY;
+        // keyed by home address region; the null key holds people without a home address
+        private final Map<Region, Summary> byRegion = new HashMap<>();
+
+        void add(Region region, Summary summary) {
+            all = all.plus(summary);
+            byRegion.put(region, summary(region).plus(summary));
+        }
+
+        // adds (sign 1) or removes (sign -1) one person
+        void add(Region region, BigDecimal salary, int sign) {
+            all = all.plus(salary, sign);
+            byRegion.put(region, summary(region).plus(salary, sign));
+        }
+
+        Summary summary(Region region) {
+            return byRegion.getOrDefault(region, Summary.EMPTY);
+        }
+
+        boolean isSameAs(Tally other) {
+            if (!all.isSameAs(other.all)) {
+                return false;
+            }
+            for (Region region : Region.values()) {
+                if (!summary(region).isSameAs(other.summary(region))) {
+                    return false;
+                }
+            }
+            return summary(null).isSameAs(other.summary(null));
+        }
+    }
+
+    PersonAggregates(PersonRepository repository) {
+        this.repository = repository;
+    }
+
+    public long getCount() {
+        return read(tally -> tally.all).count();
+    }
+
+    /**
+     * @param region Home address region; null for people without a home address.
+     */
+    public long getCount(Region region) {
+        return read(tally -> tally.summary(region)).count();
+    }
+
+    public BigDecimal getTotalSalary() {
+        return read(tally -> tally.all).totalSalary();
+    }
+
+    /**
+     * @param region Home address region; null for people without a home address.
+     */
+    public BigDecimal getTotalSalary(Region region) {
+        return read(tally -> tally.summary(region)).totalSalary();
+    }
+
+    /**
+     * @return The average over people with a salary; empty if none has one.
+     */
+    public Optional<BigDecimal> getAverageSalary() {
+        return average(read(tally -> tally.all));
+    }
+
+    /**
+     * @param region Home address region; null for people without a home address.
+     * @return The average over people in the region with a salary; empty if none has one.
+     */
+    public Optional<BigDecimal> getAverageSalary(Region region) {
+        return average(read(tally -> tally.summary(region)));
+    }
+
+    // reconciles first if a write left the aggregates stale
+    private Summary read(Function<Tally, Summary> summary) {
+        boolean reconcile;
+        synchronized (this) {
+            reconcile = stale;
+        }
+        if (reconcile) {
+            reconcile();
+        }
+        synchronized (this) {
+            return summary.apply(tally);
+        }
+    }
+
+    private static Optional<BigDecimal> average(Summary summary) {
+        return summary.salaried() == 0
+                ? Optional.empty()
+                : Optional.of(summary.totalSalary().divide(BigDecimal.valueOf(summary.salaried()), MathContext.DECIMAL64));
+    }
+
+    private static Region regionOf(Person person) {
+        return person.getHomeAddress().map(Address::region).orElse(null);
+    }
+
+    @Override
+    public void onSaved(Person person) {
+        Region region = regionOf(person);
+        BigDecimal salary = person.getSalary();
+        apply(tally -> tally.add(region, salary, 1));
+    }
+
+    @Override
+    public void onUpserted(Person person) {
+        markStale();
+    }
+
+    @Override
+    public void onUpdated(Person person, Object[] previousColumnValues) {
+        // updates don't write the home address, so the person stays in the region it was read with
+        Region region = regionOf(person);
+        BigDecimal previousSalary = (BigDecimal) previousColumnValues[PersonRepository.SALARY_UPDATE_COLUMN];
+        BigDecimal salary = person.getSalary();
+        apply(tally -> {
+            tally.add(region, previousSalary, -1);
+            tally.add(region, salary, 1);
+        });
+    }
+
+    @Override
+    public void onDeleted(Person person) {
+        Region region = regionOf(person);
+        BigDecimal salary = person.getSalary();
+        apply(tally -> tally.add(region, salary, -1));
+    }
+
+    private synchronized void apply(Consumer<Tally> change) {
+        change.accept(tally);
+        if (pendingChanges != null) {
+            pendingChanges.add(change);
+        }
+    }
+
+    private synchronized void markStale() {
+        stale = true;
+    }
+
+    /**
+     * Recounts the table with one aggregate query and replaces the aggregates with the result. Reads are served from
+     * the old aggregates until then; changes made meanwhile are applied to both, so one whose transaction commits
+     * while the table is read may be counted twice until the next reconcile.
+     * @return True if the aggregates had drifted from the table, or were stale.
+     */
+    public boolean reconcile() {
+        synchronized (reconcileLock) {
+            boolean wasStale;
+            synchronized (this) {
+                wasStale = stale;
+                stale = false;
+                pendingChanges = new ArrayList<>();
+            }
+            Tally recounted = new Tally();
+            try {
+                repository.withConnection((connection, statements) -> {
+                    // not cached: run rarely
+                    try (PreparedStatement ps = connection.prepareStatement(SEED_SQL);
+                         ResultSet resultSet = ps.executeQuery()) {
+                        while (resultSet.next()) {
+                            String region = resultSet.getString("REGION");
+                            BigDecimal totalSalary = resultSet.getBigDecimal("TOTAL_SALARY");
+                            recounted.add(region == null ? null : Region.valueOf(region.toUpperCase()), new Summary(
+                                    resultSet.getLong("PEOPLE"), resultSet.getLong("SALARIED"),
+                                    totalSalary == null ? BigDecimal.ZERO : totalSalary));
+                        }
+                    }
+                    return null;
+                });
+            } catch (SQLException e) {
+                synchronized (this) {
+                    stale |= wasStale;
+                    pendingChanges = null;
+                }
+                throw new DataException("Unable to reconcile person aggregates", e);
+            }
+            synchronized (this) {
+                pendingChanges.forEach(change -> change.accept(recounted));
+                pendingChanges = null;
+                boolean drifted = wasStale || !tally.isSameAs(recounted);
+                tally = recounted;
+                return drifted;
+            }
+        }
+    }
+
+    /**
+     * Reconciles on the executor every period; a failed reconcile is reported and retried at the next one.
+     */
+    public ScheduledFuture<?> scheduleReconcile(ScheduledExecutorService executor, Duration period) {
+        long periodMillis = period.toMillis();
+        return executor.scheduleWithFixedDelay(() -> {
+            try {
+                reconcile();
+            } catch (DataException e) {
+                e.printStackTrace();
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -4,45 +4,79 @@ import com.batherphilippa.peopledb.annotation.SQL;
 import com.batherphilippa.peopledb.domain.Address;
 import com.batherphilippa.peopledb.domain.CrudOperation;
 import com.batherphilippa.peopledb.domain.Person;
-import com.batherphilippa.peopledb.domain.Region;
+import com.batherphilippa.peopledb.domain.RelationLoader;
+import com.batherphilippa.peopledb.exception.DataException;
 
+import javax.sql.DataSource;
 import java.math.BigDecimal;
 import java.sql.*;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 public class PersonRepository extends CRUDRepository<Person> {
     private final AddressRepository addressRepo;
-    private final Map<String, Integer> aliasColumnIdxMap = new HashMap<>();
+    private static final ZoneId UTC = ZoneId.of("+0");
+    // read order of extractPerson; ID first
+    private static final String[] PERSON_COLUMNS = {"ID", "FIRST_NAME", "LAST_NAME", "DOB", "SALARY"};
+    // columns updateById writes, in getColumnValues order
+    private static final String[] UPDATE_COLUMNS = {"FIRST_NAME", "LAST_NAME", "DOB", "SALARY"};
+    // position of SALARY in UPDATE_COLUMNS, and so in the earlier values change listeners are given
+    static final int SALARY_UPDATE_COLUMN = 3;
     private static final String INSERT_PERSON_SQL = """
             INSERT INTO PEOPLE (FIRST_NAME, LAST_NAME, DOB, EMAIL, SALARY, HOME_ADDRESS, BUSINESS_ADDRESS, SPOUSE, PARENT_ID) VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?);
             """;
-    private static final String FIND_PERSON_BY_ID_SQL = """
+    private static final String INSERT_PERSON_WITH_ID_SQL = """
+            INSERT INTO PEOPLE (FIRST_NAME, LAST_NAME, DOB, EMAIL, SALARY, HOME_ADDRESS, BUSINESS_ADDRESS, SPOUSE, PARENT_ID, ID) VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?);
+            """;
+    private static final String UPSERT_PERSON_SQL = """
+            MERGE INTO PEOPLE (FIRST_NAME, LAST_NAME, DOB, EMAIL, SALARY, HOME_ADDRESS, BUSINESS_ADDRESS, SPOUSE, PARENT_ID, ID) KEY(ID) VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?);
+            """;
+    // findById and findAllById are assembled from these: the person's columns plus those of each joined relation
+    private static final String PERSON_COLUMNS_SQL = """
             SELECT
-            P.ID AS P_ID, P.FIRST_NAME AS P_FIRST_NAME, P.LAST_NAME AS P_LAST_NAME, P.DOB AS P_DOB, P.SALARY AS P_SALARY, P.HOME_ADDRESS AS P_HOME_ADDRESS,
-            P.BUSINESS_ADDRESS AS P_BUSINESS_ADDRESS, P.SPOUSE AS P_SPOUSE, P.PARENT_ID AS P_PARENT_ID,
-            S.ID AS S_ID, S.FIRST_NAME AS S_FIRST_NAME, S.LAST_NAME AS S_LAST_NAME, S.DOB AS S_DOB, S.SALARY AS S_SALARY, S.HOME_ADDRESS AS S_HOME_ADDRESS,
-            S.BUSINESS_ADDRESS AS S_BUSINESS_ADDRESS, S.SPOUSE AS S_SPOUSE, S.PARENT_ID AS S_PARENT_ID,
-            C.ID AS C_ID, C.FIRST_NAME AS C_FIRST_NAME, C.LAST_NAME AS C_LAST_NAME, C.DOB AS C_DOB, C.SALARY AS C_SALARY, C.HOME_ADDRESS AS C_HOME_ADDRESS,
-            C.BUSINESS_ADDRESS AS C_BUSINESS_ADDRESS, C.SPOUSE AS C_SPOUSE, C.PARENT_ID AS C_PARENT_ID,
-            HOME.ID AS HOME_ID, HOME.STREET_ADDRESS AS HOME_STREET_ADDRESS, HOME.ADDRESS_2 AS HOME_ADDRESS_2, HOME.CITY AS HOME_CITY,
-             HOME.STATE AS HOME_STATE, HOME.POSTCODE AS HOME_POSTCODE, HOME.COUNTY AS HOME_COUNTY, HOME.REGION AS HOME_REGION, HOME.COUNTRY AS HOME_COUNTRY,
-            BUSINESS.ID AS BUSINESS_ID, BUSINESS.STREET_ADDRESS AS BUSINESS_STREET_ADDRESS, BUSINESS.ADDRESS_2 AS BUSINESS_ADDRESS_2, BUSINESS.CITY AS BUSINESS_CITY,
+            P.ID AS P_ID, P.FIRST_NAME AS P_FIRST_NAME, P.LAST_NAME AS P_LAST_NAME, P.DOB AS P_DOB, P.SALARY AS P_SALARY
+            """;
+    private static final String HOME_COLUMNS_SQL = """
+            , HOME.ID AS HOME_ID, HOME.STREET_ADDRESS AS HOME_STREET_ADDRESS, HOME.ADDRESS_2 AS HOME_ADDRESS_2, HOME.CITY AS HOME_CITY,
+             HOME.STATE AS HOME_STATE, HOME.POSTCODE AS HOME_POSTCODE, HOME.COUNTY AS HOME_COUNTY, HOME.REGION AS HOME_REGION, HOME.COUNTRY AS HOME_COUNTRY
+            """;
+    private static final String BUSINESS_COLUMNS_SQL = """
+            , BUSINESS.ID AS BUSINESS_ID, BUSINESS.STREET_ADDRESS AS BUSINESS_STREET_ADDRESS, BUSINESS.ADDRESS_2 AS BUSINESS_ADDRESS_2, BUSINESS.CITY AS BUSINESS_CITY,
              BUSINESS.STATE AS BUSINESS_STATE, BUSINESS.POSTCODE AS BUSINESS_POSTCODE, BUSINESS.COUNTY AS BUSINESS_COUNTY, BUSINESS.REGION AS BUSINESS_REGION,
              BUSINESS.COUNTRY AS BUSINESS_COUNTRY
-            FROM PEOPLE AS P
+            """;
+    private static final String SPOUSE_COLUMNS_SQL = """
+            , S.ID AS S_ID, S.FIRST_NAME AS S_FIRST_NAME, S.LAST_NAME AS S_LAST_NAME, S.DOB AS S_DOB, S.SALARY AS S_SALARY
+            """;
+    private static final String CHILD_COLUMNS_SQL = """
+            , C.ID AS C_ID, C.FIRST_NAME AS C_FIRST_NAME, C.LAST_NAME AS C_LAST_NAME, C.DOB AS C_DOB, C.SALARY AS C_SALARY
+            """;
+    private static final String HOME_JOIN_SQL = """
             LEFT OUTER JOIN ADDRESSES AS HOME
             ON P.HOME_ADDRESS=HOME.ID
+            """;
+    private static final String BUSINESS_JOIN_SQL = """
             LEFT OUTER JOIN ADDRESSES AS BUSINESS
             ON P.BUSINESS_ADDRESS=BUSINESS.ID
+            """;
+    private static final String SPOUSE_JOIN_SQL = """
             LEFT OUTER JOIN PEOPLE AS S
             ON P.SPOUSE=S.ID
+            """;
+    private static final String CHILD_JOIN_SQL = """
             LEFT OUTER JOIN PEOPLE AS C
             ON P.ID=C.PARENT_ID
-            WHERE P.ID=?;
             """;
     private static final String FIND_ALL_SQL = """
             SELECT
@@ -52,114 +86,409 @@ public class PersonRepository extends CRUDRepository<Person> {
             FROM PEOPLE AS P
             FETCH FIRST 20 ROWS ONLY;
             """;
-    private static final String GET_COUNT_SQL = """
-            SELECT COUNT(ID) FROM PEOPLE;
+    private static final String STREAM_ALL_SQL = """
+            SELECT
+            P.ID AS P_ID, P.FIRST_NAME AS P_FIRST_NAME, P.LAST_NAME AS P_LAST_NAME, P.DOB AS P_DOB, P.SALARY AS P_SALARY,
+            P.HOME_ADDRESS AS P_HOME_ADDRESS, P.BUSINESS_ADDRESS AS P_BUSINESS_ADDRESS, P.SPOUSE AS P_SPOUSE,
+            P.PARENT_ID AS P_PARENT_ID
+            FROM PEOPLE AS P
+            ORDER BY P.ID;
+            """;
+    private static final String FIND_PAGE_SQL = """
+            SELECT
+            P.ID AS P_ID, P.FIRST_NAME AS P_FIRST_NAME, P.LAST_NAME AS P_LAST_NAME, P.DOB AS P_DOB, P.SALARY AS P_SALARY,
+            P.HOME_ADDRESS AS P_HOME_ADDRESS, P.BUSINESS_ADDRESS AS P_BUSINESS_ADDRESS, P.SPOUSE AS P_SPOUSE,
+            P.PARENT_ID AS P_PARENT_ID
+            FROM PEOPLE AS P
+            WHERE P.ID > ?
+            ORDER BY P.ID
+            FETCH FIRST ? ROWS ONLY;
             """;
-    private static final String DELETE_PERSON_BY_ID_SQL = """
-            DELETE FROM PEOPLE WHERE ID=?;
+    // relations read by queries of their own; OWNER_ID is always the first column
+    private static final String FIND_HOME_ADDRESSES_BY_OWNER_IDS_SQL = """
+            SELECT
+            P.ID AS OWNER_ID, A.ID, A.STREET_ADDRESS, A.ADDRESS_2, A.CITY, A.STATE, A.POSTCODE, A.COUNTY, A.REGION, A.COUNTRY
+            FROM PEOPLE AS P
+            INNER JOIN ADDRESSES AS A
+            ON P.HOME_ADDRESS=A.ID
+            WHERE P.ID = ANY(?);
             """;
-    private static final String DELETE_PEOPLE_BY_ID_SQL = """
-            DELETE FROM PEOPLE WHERE ID IN (:ids);
+    private static final String FIND_BUSINESS_ADDRESSES_BY_OWNER_IDS_SQL = """
+            SELECT
+            P.ID AS OWNER_ID, A.ID, A.STREET_ADDRESS, A.ADDRESS_2, A.CITY, A.STATE, A.POSTCODE, A.COUNTY, A.REGION, A.COUNTRY
+            FROM PEOPLE AS P
+            INNER JOIN ADDRESSES AS A
+            ON P.BUSINESS_ADDRESS=A.ID
+            WHERE P.ID = ANY(?);
             """;
+    // the address columns follow OWNER_ID in AddressRepository.COLUMNS order
+    private static final int[] OWNED_ADDRESS_COLUMNS = {2, 3, 4, 5, 6, 7, 8, 9, 10};
+    private static final String FIND_SPOUSES_BY_OWNER_IDS_SQL = """
+            SELECT
+            P.ID AS OWNER_ID,
+            S.ID AS P_ID, S.FIRST_NAME AS P_FIRST_NAME, S.LAST_NAME AS P_LAST_NAME, S.DOB AS P_DOB, S.SALARY AS P_SALARY
+            FROM PEOPLE AS P
+            INNER JOIN PEOPLE AS S
+            ON P.SPOUSE=S.ID
+            WHERE P.ID = ANY(?);
+            """;
+    private static final String FIND_CHILDREN_BY_OWNER_IDS_SQL = """
+            SELECT
+            C.PARENT_ID AS OWNER_ID,
+            C.ID AS P_ID, C.FIRST_NAME AS P_FIRST_NAME, C.LAST_NAME AS P_LAST_NAME, C.DOB AS P_DOB, C.SALARY AS P_SALARY
+            FROM PEOPLE AS C
+            WHERE C.PARENT_ID = ANY(?);
+            """;
+    private static final String PROJECT_SQL = """
+            SELECT :columns FROM PEOPLE ORDER BY ID;
+            """;
+    private static final String GET_COUNT_SQL = """
+            SELECT COUNT(ID) FROM PEOPLE;
+            """;
+    // deletes read back the people they delete, with their home address, for change listeners
+    private static final String DELETE_PERSON_BY_ID_SQL = PERSON_COLUMNS_SQL + HOME_COLUMNS_SQL + """
+            FROM OLD TABLE (DELETE FROM PEOPLE WHERE ID=?) AS P
+            """ + HOME_JOIN_SQL + ";\n";
+    private static final String DELETE_PEOPLE_BY_ID_SQL = PERSON_COLUMNS_SQL + HOME_COLUMNS_SQL + """
+            FROM OLD TABLE (DELETE FROM PEOPLE WHERE ID = ANY(?)) AS P
+            """ + HOME_JOIN_SQL + ";\n";
     private static final String UPDATE_PERSON_BY_ID_SQL = """
-            UPDATE PEOPLE SET ID=?, FIRST_NAME=?, LAST_NAME=?, DOB=?, SALARY=? WHERE ID=?;
+            UPDATE PEOPLE SET :columns WHERE ID=?;
             """;
+    private static final String LINK_PERSON_SQL = """
+            UPDATE PEOPLE SET SPOUSE=?, PARENT_ID=? WHERE ID=?;
+            """;
+
+    /**
+     * Relations of a person whose {@link FetchStrategy} can be chosen.
+     */
+    public enum Relation {
+        HOME_ADDRESS(HOME_COLUMNS_SQL, HOME_JOIN_SQL, FIND_HOME_ADDRESSES_BY_OWNER_IDS_SQL),
+        BUSINESS_ADDRESS(BUSINESS_COLUMNS_SQL, BUSINESS_JOIN_SQL, FIND_BUSINESS_ADDRESSES_BY_OWNER_IDS_SQL),
+        SPOUSE(SPOUSE_COLUMNS_SQL, SPOUSE_JOIN_SQL, FIND_SPOUSES_BY_OWNER_IDS_SQL),
+        CHILDREN(CHILD_COLUMNS_SQL, CHILD_JOIN_SQL, FIND_CHILDREN_BY_OWNER_IDS_SQL);
+
+        private final String joinedColumnsSql;
+        private final String joinSql;
+        private final String findByOwnerIdsSql;
+
+        Relation(String joinedColumnsSql, String joinSql, String findByOwnerIdsSql) {
+            this.joinedColumnsSql = joinedColumnsSql;
+            this.joinSql = joinSql;
+            this.findByOwnerIdsSql = findByOwnerIdsSql;
+        }
+    }
+
+    // immutable, so a reader sees the strategies together with the SQL built from them
+    private record FetchPlan(Map<Relation, FetchStrategy> strategies, String findByIdSql, String findAllByIdSql) {
+
+        static FetchPlan of(Map<Relation, FetchStrategy> strategies) {
+            EnumMap<Relation, FetchStrategy> copy = new EnumMap<>(strategies);
+            StringBuilder columns = new StringBuilder(PERSON_COLUMNS_SQL);
+            StringBuilder joins = new StringBuilder("FROM PEOPLE AS P\n");
+            StringBuilder singleColumns = new StringBuilder();
+            StringBuilder singleJoins = new StringBuilder();
+            for (Relation relation : Relation.values()) {
+                if (copy.get(relation) == FetchStrategy.JOIN) {
+                    // a collection is joined for a single person only
+                    StringBuilder targetColumns = relation == Relation.CHILDREN ? singleColumns : columns;
+                    StringBuilder targetJoins = relation == Relation.CHILDREN ? singleJoins : joins;
+                    targetColumns.append(relation.joinedColumnsSql);
+                    targetJoins.append(relation.joinSql);
+                }
+            }
+            String findByIdSql = columns + singleColumns.toString() + joins + singleJoins + "WHERE P.ID=?;\n";
+            String findAllByIdSql = columns.toString() + joins + "WHERE P.ID = ANY(?);\n";
+            return new FetchPlan(copy, findByIdSql, findAllByIdSql);
+        }
+
+        boolean isJoined(Relation relation, CrudOperation operationType) {
+            return strategies.get(relation) == FetchStrategy.JOIN
+                    && (relation != Relation.CHILDREN || operationType == CrudOperation.FIND_ONE);
+        }
+    }
+
+    // children are read by a query of their own so a large family doesn't multiply the rows of the join
+    private static final FetchPlan DEFAULT_FETCH_PLAN = FetchPlan.of(Map.of(
+            Relation.HOME_ADDRESS, FetchStrategy.JOIN,
+            Relation.BUSINESS_ADDRESS, FetchStrategy.JOIN,
+            Relation.SPOUSE, FetchStrategy.JOIN,
+            Relation.CHILDREN, FetchStrategy.BATCH));
+    private volatile FetchPlan fetchPlan = DEFAULT_FETCH_PLAN;
+    private volatile PersonAggregates aggregates;
+
     public PersonRepository(Connection connection) {
-        super(connection);
-        this.addressRepo = new AddressRepository(connection);
+        this(ConnectionProvider.of(connection));
+    }
+
+    public PersonRepository(DataSource dataSource) {
+        this(dataSource instanceof ConnectionPool pool ? pool : new ConnectionPool(dataSource));
+    }
+
+    public PersonRepository(ConnectionProvider connections) {
+        super(connections);
+        // shares the provider so a person and its addresses are saved on the same connection
+        this.addressRepo = new AddressRepository(connections);
+    }
+    /**
+     * Chooses how findById and findAllById read a relation; statements for earlier choices stay cached.
+     */
+    public synchronized void setFetchStrategy(Relation relation, FetchStrategy strategy) {
+        Map<Relation, FetchStrategy> strategies = new EnumMap<>(fetchPlan.strategies());
+        strategies.put(relation, strategy);
+        fetchPlan = FetchPlan.of(strategies);
+    }
+
+    public FetchStrategy getFetchStrategy(Relation relation) {
+        return fetchPlan.strategies().get(relation);
+    }
+
+    /**
+     * The ID generator for the addresses saved with people; see setIdGenerator.
+     */
+    public void setAddressIdGenerator(SequenceIdGenerator idGenerator) {
+        addressRepo.setIdGenerator(idGenerator);
+    }
+
+    /**
+     * Seeds the head count and salary aggregates from the table, on the first call, and keeps them up to date with
+     * this repository's writes from then on; getCount is served from them.
+     */
+    public synchronized PersonAggregates maintainAggregates() {
+        if (aggregates == null) {
+            PersonAggregates seeded = new PersonAggregates(this);
+            // listening before the seed is read, so no write falls between the two
+            addChangeListener(seeded);
+            try {
+                seeded.reconcile();
+            } catch (DataException e) {
+                removeChangeListener(seeded);
+                throw e;
+            }
+            aggregates = seeded;
+        }
+        return aggregates;
+    }
+
+    @Override
+    long countRows() throws SQLException {
+        PersonAggregates aggregates = this.aggregates;
+        return aggregates == null ? super.countRows() : aggregates.getCount();
+    }
+
+    // also called by the CRUDRepository constructor, before fetchPlan is assigned
+    private FetchPlan currentFetchPlan() {
+        FetchPlan plan = fetchPlan;
+        return plan == null ? DEFAULT_FETCH_PLAN : plan;
+    }
+
+    @Override
+    protected String getFindByIdSql() {
+        return currentFetchPlan().findByIdSql();
+    }
+
+    @Override
+    protected String getFindAllByIdSql() {
+        return currentFetchPlan().findAllByIdSql();
     }
+
     private Timestamp convertDobToTimestamp(ZonedDateTime dob) {
-        return Timestamp.valueOf(dob.withZoneSameInstant(ZoneId.of("+0")).toLocalDateTime());
+        return Timestamp.valueOf(dob.withZoneSameInstant(UTC).toLocalDateTime());
     }
     @Override
-    @SQL(value=FIND_PERSON_BY_ID_SQL, operationType= CrudOperation.FIND_ONE)
     @SQL(value=FIND_ALL_SQL, operationType= CrudOperation.FIND_MANY)
-    Person extractEntityFromResultSet(ResultSet resultSet) throws SQLException {
-        Person finalParent = null;
-        do {
-            // .get() as if no record, the method should not return anything
-            Person currentParent = extractPerson(resultSet, "P_").get();
-            if (finalParent == null) {
-                finalParent = currentParent;
+    @SQL(value=STREAM_ALL_SQL, operationType= CrudOperation.STREAM_ALL)
+    @SQL(value=FIND_PAGE_SQL, operationType= CrudOperation.FIND_PAGE)
+    RowMapper<Person> compileRowMapper(ResultSetMetaData metaData) throws SQLException {
+        ColumnLayout layout = ColumnLayout.of(metaData);
+        // null where the query does not join that table, e.g. as the relation is fetched by a query of its own
+        int[] person = layout.resolve("P_", PERSON_COLUMNS);
+        int[] spouse = layout.resolve("S_", PERSON_COLUMNS);
+        int[] child = layout.resolve("C_", PERSON_COLUMNS);
+        int[] homeAddress = layout.resolve("HOME_", AddressRepository.COLUMNS);
+        int[] businessAddress = layout.resolve("BUSINESS_", AddressRepository.COLUMNS);
+        if (person == null) {
+            throw new SQLException("Column not found for alias: P_ID");
+        }
+        return resultSet -> {
+            Person parent = extractPerson(resultSet, person);
+            // takes a regular Address, but internally wraps it within an Optional
+            if (homeAddress != null) {
+                parent.setHomeAddress(AddressRepository.extractAddress(resultSet, homeAddress));
             }
-            if(!finalParent.equals(currentParent)) {
-                resultSet.previous();
-                break;
+            if (businessAddress != null) {
+                parent.setBusinessAddress(AddressRepository.extractAddress(resultSet, businessAddress));
             }
-            Address homeAddress = extractAddress(resultSet, "HOME_");
-            // extract business address
-            Address businessAddress = extractAddress(resultSet, "BUSINESS_");
-            // extract spouse
-            Optional<Person> spouse = extractPerson(resultSet, "S_");
-            // extract child
-            Optional<Person> child = extractPerson(resultSet, "C_");
-            // takes a regular Address, but internally wraps it within an Optional
-            finalParent.setHomeAddress(homeAddress);
-            finalParent.setBusinessAddress(businessAddress);
-            spouse.ifPresent(finalParent::setSpouse);
-            child.ifPresent(finalParent::addChild);
-        } while (resultSet.next());
-        return finalParent;
-    }
-
-    private Optional<Person> extractPerson(ResultSet resultSet, String aliasPrefix) throws SQLException {
-        Long personId = getValueByAlias(aliasPrefix.concat("ID"), resultSet, Long.class);
-        if (personId == null) {return Optional.empty();}
-        String firstName = getValueByAlias(aliasPrefix.concat("FIRST_NAME"), resultSet, String.class);
-        String lastName = getValueByAlias(aliasPrefix.concat("LAST_NAME"), resultSet, String.class);
-        ZonedDateTime dob = ZonedDateTime.of(getValueByAlias(aliasPrefix.concat("DOB"), resultSet, Timestamp.class).toLocalDateTime(), ZoneId.of("+0"));
-        BigDecimal salary = getValueByAlias(aliasPrefix.concat("SALARY"), resultSet, BigDecimal.class);
-        Person person = new Person(personId, firstName, lastName, dob, salary);
-        return Optional.of(person);
-    }
-
-    private Address extractAddress(ResultSet resultSet, String aliasPrefix) throws SQLException {
-        // alternative means of retrieving addressId if column aliases not picked up automatically
-        Long addressId = getValueByAlias(aliasPrefix.concat("ID"), resultSet, Long.class);
-        if (addressId == null) {return null;}
-        // easy means: if column aliases picked up automatically, simply pass the alias as a param; but less portable
-        // as depends on all DB having this automatic functionality
-//        long addressId = resultSet.getLong("A_ID");
-
-        String streetAddress =  getValueByAlias(aliasPrefix.concat("STREET_ADDRESS"), resultSet, String.class);
-        String address2 =  getValueByAlias(aliasPrefix.concat("ADDRESS_2"), resultSet, String.class);
-        String city =  getValueByAlias(aliasPrefix.concat("CITY"), resultSet, String.class);
-        String state =  getValueByAlias(aliasPrefix.concat("STATE"), resultSet, String.class);
-        String postcode =  getValueByAlias(aliasPrefix.concat("POSTCODE"), resultSet, String.class);
-        String county =  getValueByAlias(aliasPrefix.concat("COUNTY"), resultSet, String.class);
-        // problematic if field is null
-        Region region = Region.valueOf(getValueByAlias(aliasPrefix.concat("REGION"), resultSet, String.class).toUpperCase());
-        String country =  getValueByAlias(aliasPrefix.concat("COUNTRY"), resultSet, String.class);
-        return new Address(addressId, streetAddress, address2, city, state, postcode, country, county, region);
-    }
-    private <T> T getValueByAlias(String alias, ResultSet resultSet, Class<T> clazz) throws SQLException {
-        int columnCount = resultSet.getMetaData().getColumnCount();
-        int foundIndex = getAliasIndex(alias, resultSet, columnCount);
-        return foundIndex == 0 ? null : (T) resultSet.getObject(foundIndex);
-        // method doesn't have to return a value if throws an exception
-        // in this case it could make more sense to indicate that the anticipated alias doesn't exist
-//        throw new SQLException(String.format("Column not found for alias: %s", alias));
-    }
-
-    private Integer getAliasIndex(String alias, ResultSet resultSet, int columnCount) throws SQLException {
-        Integer foundIndx = aliasColumnIdxMap.getOrDefault(alias, 0);
-        if (foundIndx == 0) {
-            for(int colIndex = 1; colIndex <= columnCount; colIndex++) {
-                if(alias.equals(resultSet.getMetaData().getColumnLabel(colIndex))) {
-                    foundIndx = colIndex;
-                    // cache aliases
-                    aliasColumnIdxMap.put(alias, foundIndx);
-                    break;
-    //                return resultSet.getObject(colIndex, clazz);
-                    // alternatively cast return (T) resultSet.getObject(colIndex);
+            if (spouse != null) {
+                Person foundSpouse = extractPerson(resultSet, spouse);
+                if (foundSpouse != null) {
+                    parent.setSpouse(foundSpouse);
+                }
+            }
+            if (child != null) {
+                // joining children is only done by single-person lookups, so every remaining row belongs to this parent
+                do {
+                    Person foundChild = extractPerson(resultSet, child);
+                    if (foundChild != null) {
+                        parent.addChild(foundChild);
+                    }
+                } while (resultSet.next());
+            }
+            return parent;
+        };
+    }
+
+    // reads each relation the query didn't join: by one query over all the people, by one query per person,
+    // or on first access
+    @Override
+    void loadRelations(Connection connection, StatementCache statements, CrudOperation operationType, List<Person> people) throws SQLException {
+        FetchPlan plan = currentFetchPlan();
+        Map<Long, Person> peopleById = new HashMap<>();
+        people.forEach(person -> peopleById.put(person.getId(), person));
+        List<Long> ids = new ArrayList<>(peopleById.keySet());
+        // people sharing an address share one instance of it
+        Map<Long, Address> addresses = new HashMap<>();
+        for (Relation relation : Relation.values()) {
+            FetchStrategy strategy = plan.strategies().get(relation);
+            if (plan.isJoined(relation, operationType)) {
+                continue;
+            }
+            if (strategy == FetchStrategy.LAZY) {
+                deferRelation(relation, new SiblingLoader(relation, peopleById));
+                continue;
+            }
+            PreparedStatement ps = statements.prepare(CrudOperation.FIND_ALL_BY_ID, relation.findByOwnerIdsSql);
+            ResultSetCallback link = resultSet -> readRelation(relation, resultSet, peopleById, addresses,
+                    (owner, related) -> linkRelation(relation, owner, related));
+            if (strategy == FetchStrategy.SELECT) {
+                for (Long id : ids) {
+                    queryByIdChunks(connection, ps, relation.findByOwnerIdsSql, List.of(id), link);
+                }
+            } else {
+                queryByIdChunks(connection, ps, relation.findByOwnerIdsSql, ids, link);
+            }
+        }
+    }
+
+    // passes each row of a relation query to the sink, with the person owning it; a spouse or child that was itself
+    // read is passed as that same instance. Returns the number of rows read
+    private int readRelation(Relation relation, ResultSet resultSet, Map<Long, Person> peopleById, Map<Long, Address> addresses,
+                              BiConsumer<Person, Object> sink) throws SQLException {
+        RowMapper<Person> mapper = relation == Relation.SPOUSE || relation == Relation.CHILDREN
+                ? rowMapper(relation.findByOwnerIdsSql, resultSet) : null;
+        int rowsRead = 0;
+        while (resultSet.next()) {
+            Person owner = peopleById.get(resultSet.getLong(1));
+            Object related = switch (relation) {
+                case HOME_ADDRESS, BUSINESS_ADDRESS -> internAddress(addresses, AddressRepository.extractAddress(resultSet, OWNED_ADDRESS_COLUMNS));
+                case SPOUSE, CHILDREN -> {
+                    Person person = mapper.mapRow(resultSet);
+                    yield peopleById.getOrDefault(person.getId(), person);
+                }
+            };
+            sink.accept(owner, related);
+            rowsRead++;
+        }
+        return rowsRead;
+    }
+
+    private static void linkRelation(Relation relation, Person owner, Object related) {
+        switch (relation) {
+            case HOME_ADDRESS -> owner.setHomeAddress((Address) related);
+            case BUSINESS_ADDRESS -> owner.setBusinessAddress((Address) related);
+            case SPOUSE -> owner.setSpouse((Person) related);
+            case CHILDREN -> owner.addChild((Person) related);
+        }
+    }
+
+    private static void deferRelation(Relation relation, SiblingLoader loader) {
+        switch (relation) {
+            case HOME_ADDRESS -> {
+                RelationLoader<Address> homeAddressLoader = person -> (Address) loader.load(person);
+                loader.forEachSibling(person -> person.setHomeAddressLoader(homeAddressLoader));
+            }
+            case BUSINESS_ADDRESS -> {
+                RelationLoader<Address> businessAddressLoader = person -> (Address) loader.load(person);
+                loader.forEachSibling(person -> person.setBusinessAddressLoader(businessAddressLoader));
+            }
+            case SPOUSE -> {
+                RelationLoader<Person> spouseLoader = person -> (Person) loader.load(person);
+                loader.forEachSibling(person -> person.setSpouseLoader(spouseLoader));
+            }
+            case CHILDREN -> {
+                RelationLoader<List<Person>> childrenLoader = loader::loadAll;
+                loader.forEachSibling(person -> person.setChildrenLoader(childrenLoader));
+            }
+        }
+    }
+
+    /**
+     * Reads one relation for every person of a read on the first access by any of them, then hands out each
+     * person's part. Only the loaded relations are kept, not the people.
+     */
+    private final class SiblingLoader {
+        private final Relation relation;
+        private Map<Long, Person> siblings;
+        private Map<Long, List<Object>> loaded;
+
+        SiblingLoader(Relation relation, Map<Long, Person> siblings) {
+            this.relation = relation;
+            this.siblings = siblings;
+        }
+
+        void forEachSibling(Consumer<Person> action) {
+            siblings.values().forEach(action);
+        }
+
+        Object load(Person person) {
+            List<Object> related = loadAll(person);
+            return related.isEmpty() ? null : related.get(0);
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized <R> List<R> loadAll(Person person) {
+            if (loaded == null) {
+                Map<Long, List<Object>> byOwner = new HashMap<>();
+                try {
+                    withConnection((connection, statements) -> {
+                        PreparedStatement ps = statements.prepare(CrudOperation.FIND_ALL_BY_ID, relation.findByOwnerIdsSql);
+                        queryByIdChunks(connection, ps, relation.findByOwnerIdsSql, new ArrayList<>(siblings.keySet()), resultSet ->
+                                readRelation(relation, resultSet, siblings, new HashMap<>(),
+                                        (owner, related) -> byOwner.computeIfAbsent(owner.getId(), id -> new ArrayList<>()).add(related)));
+                        return byOwner;
+                    });
+                } catch (SQLException e) {
+                    throw new DataException("Unable to load " + relation + " lazily", e);
                 }
+                loaded = byOwner;
+                siblings = null;
             }
+            return (List<R>) loaded.getOrDefault(person.getId(), List.of());
         }
-        return foundIndx;
+    }
+
+    private static Address internAddress(Map<Long, Address> addresses, Address address) {
+        if (address == null) {return null;}
+        Address known = addresses.putIfAbsent(address.id(), address);
+        return known == null ? address : known;
+    }
+
+    // reads the columns in PERSON_COLUMNS order; null if the ID is null, e.g. from an unmatched outer join
+    private static Person extractPerson(ResultSet resultSet, int[] columns) throws SQLException {
+        long personId = resultSet.getLong(columns[0]);
+        if (resultSet.wasNull()) {return null;}
+        String firstName = resultSet.getString(columns[1]);
+        String lastName = resultSet.getString(columns[2]);
+        ZonedDateTime dob = ZonedDateTime.of(resultSet.getTimestamp(columns[3]).toLocalDateTime(), UTC);
+        BigDecimal salary = resultSet.getBigDecimal(columns[4]);
+        return new Person(personId, firstName, lastName, dob, salary);
     }
 
     @Override
     @SQL(value=INSERT_PERSON_SQL, operationType= CrudOperation.SAVE)
+    @SQL(value=INSERT_PERSON_WITH_ID_SQL, operationType= CrudOperation.SAVE_WITH_ID)
+    @SQL(value=UPSERT_PERSON_SQL, operationType= CrudOperation.UPSERT)
+    @SQL(value=PROJECT_SQL, operationType= CrudOperation.PROJECT)
     @SQL(value=GET_COUNT_SQL, operationType= CrudOperation.COUNT)
     @SQL(value=DELETE_PERSON_BY_ID_SQL, operationType= CrudOperation.DELETE_ONE)
     @SQL(value=DELETE_PEOPLE_BY_ID_SQL, operationType= CrudOperation.DELETE_MANY)
@@ -171,55 +500,142 @@ public class PersonRepository extends CRUDRepository<Person> {
         ps.setBigDecimal(5, entity.getSalary());
         associateAddressWithPerson(ps, entity.getHomeAddress(), 6);
         associateAddressWithPerson(ps, entity.getBusinessAddress(), 7);
-        associateSpouseWithPerson(ps, entity.getSpouse(), 8);
-        associateChildWithPerson(ps, entity, 9);
+        associatePersonWithPerson(ps, entity.getSpouse(), 8);
+        associatePersonWithPerson(ps, entity.getParent(), 9);
     }
 
-    private void associateChildWithPerson(PreparedStatement ps, Person entity, int paramIndex) throws SQLException {
-        Optional<Person> parent = entity.getParent();
-        if (parent.isPresent()) {
-            ps.setLong(paramIndex, parent.get().getId());
-        } else {
-            ps.setObject(paramIndex, null);
+    /**
+     * Writes the SPOUSE and PARENT_ID of people already saved, in JDBC batches; a {@link UnitOfWork} links people
+     * this way once everyone they refer to has an ID.
+     * @return The number of rows updated.
+     */
+    int linkAll(Collection<Person> people) throws SQLException {
+        return withConnection((connection, statements) ->
+                executeBatched(statements, CrudOperation.UPDATE, LINK_PERSON_SQL, people, (person, ps) -> {
+                    associatePersonWithPerson(ps, person.getSpouse(), 1);
+                    associatePersonWithPerson(ps, person.getParent(), 2);
+                    ps.setLong(3, person.getId());
+                }));
+    }
+
+    long insertAddresses(Collection<Address> addresses) throws SQLException {
+        return addressRepo.insertAll(addresses);
+    }
+
+    // addresses and spouse must have IDs before the person's row can be bound; ones that have them already exist
+    @Override
+    protected void preSave(Person entity) {
+        entity.getHomeAddress().filter(address -> address.id() == null).ifPresent(addressRepo::save);
+        entity.getBusinessAddress().filter(address -> address.id() == null).ifPresent(addressRepo::save);
+        entity.getSpouse().filter(spouse -> spouse.getId() == null).ifPresent(this::save);
+    }
+
+    /**
+     * Saves the person with the unsaved addresses, spouse, parent and children reachable from it, each once, by a
+     * {@link SavePlan}: a batch per table instead of a statement per row. A person with an ID is not saved again.
+     */
+    @Override
+    protected Person save(Person entity) {
+        return execute(SavePlan.of(List.of(entity))) ? entity : null;
+    }
+
+    /**
+     * Saves the people and the graph reachable from them as one {@link SavePlan}, so people and addresses shared
+     * between them are saved once.
+     */
+    @Override
+    protected List<Person> saveAll(Collection<Person> entities) {
+        return execute(SavePlan.of(entities)) ? new ArrayList<>(entities) : new ArrayList<>();
+    }
+
+    /**
+     * Saves the stream batchSize people at a time, each batch with the graph reachable from it as one
+     * {@link SavePlan}; people already saved with an earlier batch are not saved again.
+     * @return The number of people saved, including those reached from the stream's.
+     */
+    @Override
+    protected long saveAll(Stream<Person> entities) {
+        int batchSize = getBatchSize();
+        List<Person> batch = new ArrayList<>(batchSize);
+        long savedCount = 0L;
+        Iterator<Person> iterator = entities.iterator();
+        while (iterator.hasNext()) {
+            batch.add(iterator.next());
+            if (batch.size() == batchSize || !iterator.hasNext()) {
+                SavePlan plan = SavePlan.of(batch);
+                if (!execute(plan)) {
+                    break;
+                }
+                savedCount += plan.getPeople().size();
+                batch.clear();
+            }
         }
+        return savedCount;
+    }
+
+    /**
+     * Saves the people as saveAll does, but throws a failure rather than reporting it and saving nothing, for callers
+     * that manage the transaction themselves and must roll it back, e.g. a PersonIngestPipeline.
+     * @return The number of people inserted, including those reached from the given ones.
+     */
+    public long saveAllOrThrow(Collection<Person> people) throws SQLException {
+        return saveGraphs(people);
     }
 
     @Override
-    protected void postSave(long id, Person entity) {
-        entity.getChildren()
-                .stream()
-                .forEach(this::save);
+    long saveGraphs(Collection<Person> entities) throws SQLException {
+        return SavePlan.of(entities).execute(this);
+    }
+
+    private boolean execute(SavePlan plan) {
+        try {
+            plan.execute(this);
+            return true;
+        } catch (SQLException e) {
+            reportError(CrudOperation.SAVE, e);
+            return false;
+        }
     }
 
     private void associateAddressWithPerson(PreparedStatement ps, Optional<Address> address, int paramIndex) throws SQLException {
-        Address savedAddress;
         if (address.isPresent()) {
-            savedAddress = addressRepo.save(address.get());
-            ps.setLong(paramIndex, savedAddress.id());
+            ps.setLong(paramIndex, address.get().id());
         } else {
             ps.setObject(paramIndex, null);
         }
     }
 
-    private void associateSpouseWithPerson(PreparedStatement ps, Optional<Person> spouse, int paramIndex) throws SQLException {
-        Person savedSpouse;
-        if (spouse.isPresent()) {
-            savedSpouse = save(spouse.get());
-            ps.setLong(paramIndex, savedSpouse.getId());
+    // a spouse or parent not yet saved is left unset; a unit of work links it by linkAll once it has an ID
+    private void associatePersonWithPerson(PreparedStatement ps, Optional<Person> person, int paramIndex) throws SQLException {
+        if (person.isPresent() && person.get().getId() != null) {
+            ps.setLong(paramIndex, person.get().getId());
         } else {
             ps.setObject(paramIndex, null);
         }
     }
 
+    @Override
+    Person copyEntity(Person entity) {
+        return entity.copy();
+    }
+
+    // spouses, parents and children refer to each other by foreign keys
+    @Override
+    Collection<Person> related(Person entity) {
+        List<Person> related = new ArrayList<>(entity.getChildren());
+        entity.getSpouse().ifPresent(related::add);
+        entity.getParent().ifPresent(related::add);
+        return related;
+    }
+
     @Override
     @SQL(value=UPDATE_PERSON_BY_ID_SQL, operationType= CrudOperation.UPDATE)
-    PreparedStatement mapForUpdate(Person entity, PreparedStatement prepStat) throws SQLException {
-        prepStat.setLong(1, entity.getId());
-        prepStat.setString(2, entity.getFirstname());
-        prepStat.setString(3, entity.getLastname());
-        prepStat.setTimestamp(4, convertDobToTimestamp(entity.getDob()));
-        prepStat.setBigDecimal(5, entity.getSalary());
-        prepStat.setLong(6, entity.getId());
-        return prepStat;
+    String[] getUpdateColumns() {
+        return UPDATE_COLUMNS;
+    }
+
+    @Override
+    Object[] getColumnValues(Person entity) {
+        return new Object[] {entity.getFirstname(), entity.getLastname(), convertDobToTimestamp(entity.getDob()), entity.getSalary()};
     }
 }
\ No newline at end of file
@@ -0,0 +1,99 @@
+package com.batherphilippa.peopledb.repository;
+
+import com.batherphilippa.peopledb.exception.DataException;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.RecordComponent;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A record read straight from the columns named by its components, e.g. lastName from LAST_NAME, with no joins
+ * and no entity in between. Built once per record class and shared by all repositories.
+ */
+final class Projection<P extends Record> implements RowMapper<P> {
+
+    private static final ClassValue<Projection<?>> REGISTRY = new ClassValue<>() {
+        @Override
+        protected Projection<?> computeValue(Class<?> recordType) {
+            return new Projection<>(recordType);
+        }
+    };
+
+    private final Class<?> recordType;
+    private final String[] columns;
+    // boxed, as read by ResultSet.getObject
+    private final Class<?>[] columnTypes;
+    // (Object[])Object, spreading the column values over the canonical constructor
+    private final MethodHandle constructor;
+
+    @SuppressWarnings("unchecked")
+    static <P extends Record> Projection<P> of(Class<P> recordType) {
+        return (Projection<P>) REGISTRY.get(recordType);
+    }
+
+    private Projection(Class<?> recordType) {
+        this.recordType = recordType;
+        RecordComponent[] components = recordType.getRecordComponents();
+        Class<?>[] parameterTypes = new Class<?>[components.length];
+        this.columns = new String[components.length];
+        this.columnTypes = new Class<?>[components.length];
+        for (int i = 0; i < components.length; i++) {
+            parameterTypes[i] = components[i].getType();
+            columns[i] = toColumnName(components[i].getName());
+            columnTypes[i] = MethodType.methodType(parameterTypes[i]).wrap().returnType();
+        }
+        try {
+            Constructor<?> canonical = recordType.getDeclaredConstructor(parameterTypes);
+            // the record may be nested in the caller's class; access is checked once here rather than per row
+            canonical.setAccessible(true);
+            this.constructor = MethodHandles.lookup().unreflectConstructor(canonical)
+                    .asSpreader(Object[].class, components.length)
+                    .asType(MethodType.methodType(Object.class, Object[].class));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            throw new DataException("Unable to access constructor of projection " + recordType.getName(), e);
+        }
+    }
+
+    // lastName -> LAST_NAME
+    private static String toColumnName(String componentName) {
+        StringBuilder column = new StringBuilder(componentName.length() + 4);
+        for (int i = 0; i < componentName.length(); i++) {
+            char c = componentName.charAt(i);
+            if (Character.isUpperCase(c) && i > 0) {
+                column.append('_');
+            }
+            column.append(Character.toUpperCase(c));
+        }
+        return column.toString();
+    }
+
+    /**
+     * @param sqlTemplate SQL with a ":columns" placeholder for the select list.
+     * @return The SQL selecting only this projection's columns, in component order.
+     */
+    String toSql(String sqlTemplate) {
+        return sqlTemplate.replace(":columns", String.join(", ", columns));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public P mapRow(ResultSet resultSet) throws SQLException {
+        Object[] values = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            values[i] = resultSet.getObject(i + 1, columnTypes[i]);
+        }
+        Object record;
+        try {
+            record = constructor.invokeExact(values);
+        } catch (NullPointerException e) {
+            throw new DataException(String.format("Null value for a primitive component of %s", recordType.getName()), e);
+        } catch (Throwable e) {
+            throw new DataException("Unable to construct projection " + recordType.getName(), e);
+        }
+        return (P) record;
+    }
+}
@@ -0,0 +1,23 @@
+package com.batherphilippa.peopledb.repository;
+
+import com.batherphilippa.peopledb.domain.CrudOperation;
+
+import java.sql.SQLException;
+
+/**
+ * Observes the statements a repository executes, e.g. to collect metrics or log slow queries. Called on the thread
+ * running the statement, so implementations should be quick and thread safe. Nothing is timed while a repository
+ * has no listeners.
+ */
+public interface RepositoryListener {
+
+    /**
+     * Called once each statement, or JDBC batch, has executed and its rows have been read.
+     */
+    default void onStatement(StatementEvent event) {}
+
+    /**
+     * Called when an operation fails, before the repository handles the exception as it otherwise would.
+     */
+    default void onError(Class<?> entityType, CrudOperation operationType, SQLException e) {}
+}
@@ -0,0 +1,84 @@
+package com.batherphilippa.peopledb.repository;
+
+import com.batherphilippa.peopledb.domain.CrudOperation;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statement counts, latencies, rows and errors per entity type and CrudOperation. Register one instance with every
+ * repository to be measured; counters only ever grow.
+ */
+public final class RepositoryMetrics implements RepositoryListener {
+
+    private final Map<Class<?>, Map<CrudOperation, OperationMetrics>> metricsByEntityType = new ConcurrentHashMap<>();
+
+    public static final class OperationMetrics {
+        private final Histogram latencyNanos = new Histogram();
+        private final Histogram batchSizes = new Histogram();
+        private final LongAdder rowsRead = new LongAdder();
+        private final LongAdder rowsWritten = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+
+        /**
+         * @return Latency of each statement, or JDBC batch; its count is the number of statements executed.
+         */
+        public Histogram getLatencyNanos() {
+            return latencyNanos;
+        }
+
+        public Histogram getBatchSizes() {
+            return batchSizes;
+        }
+
+        public long getStatementCount() {
+            return latencyNanos.getCount();
+        }
+
+        public long getRowsRead() {
+            return rowsRead.sum();
+        }
+
+        public long getRowsWritten() {
+            return rowsWritten.sum();
+        }
+
+        public long getErrorCount() {
+            return errors.sum();
+        }
+    }
+
+    /**
+     * @return The metrics of the operation, all zero if it hasn't run.
+     */
+    public OperationMetrics get(Class<?> entityType, CrudOperation operationType) {
+        return metricsByEntityType.computeIfAbsent(entityType, type -> new ConcurrentHashMap<>())
+                .computeIfAbsent(operationType, op -> new OperationMetrics());
+    }
+
+    /**
+     * @return Snapshot of the operations of the entity type that have run, or failed, so far.
+     */
+    public Map<CrudOperation, OperationMetrics> getAll(Class<?> entityType) {
+        Map<CrudOperation, OperationMetrics> metrics = metricsByEntityType.get(entityType);
+        return metrics == null || metrics.isEmpty() ? Collections.emptyMap() : Collections.unmodifiableMap(new EnumMap<>(metrics));
+    }
+
+    @Override
+    public void onStatement(StatementEvent event) {
+        OperationMetrics metrics = get(event.getEntityType(), event.getOperationType());
+        metrics.latencyNanos.record(event.getElapsedNanos());
+        metrics.batchSizes.record(event.getBatchSize());
+        metrics.rowsRead.add(event.getRowsRead());
+        metrics.rowsWritten.add(event.getRowsWritten());
+    }
+
+    @Override
+    public void onError(Class<?> entityType, CrudOperation operationType, SQLException e) {
+        get(entityType, operationType).errors.increment();
+    }
+}
@@ -0,0 +1,14 @@
+package com.batherphilippa.peopledb.repository;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Reads the entity at the result set's current row. A mapper is compiled for one column layout, so it reads by
+ * fixed column index and never consults the result set's metadata.
+ */
+@FunctionalInterface
+interface RowMapper<T> {
+
+    T mapRow(ResultSet resultSet) throws SQLException;
+}
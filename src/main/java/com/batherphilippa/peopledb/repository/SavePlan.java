@@ -0,0 +1,154 @@
+package com.batherphilippa.peopledb.repository;
+
+import com.batherphilippa.peopledb.domain.Address;
+import com.batherphilippa.peopledb.domain.Person;
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * The rows saving a graph of people writes, found by walking it once. Each unsaved person reachable through spouses,
+ * parents and children is inserted once, however many others refer to it, so spouses referring to each other do not
+ * recurse. Unsaved addresses are inserted once per value: people holding equal addresses are given the one instance
+ * that is saved. People are inserted after the spouse and parent they refer to, so when the repository numbers rows
+ * as they are bound, only links around a cycle, e.g. between spouses, are left to a batched UPDATE after the inserts;
+ * with generated keys, every link to a person inserted by the same plan is.
+ */
+final class SavePlan {
+
+    private final List<Address> addresses = new ArrayList<>();
+    private final List<Person> people = new ArrayList<>();
+
+    private SavePlan() {
+    }
+
+    /**
+     * @param roots People to save; ones that already have an ID are not saved again.
+     */
+    static SavePlan of(Collection<Person> roots) {
+        SavePlan plan = new SavePlan();
+        List<Person> reached = new ArrayList<>();
+        Set<Person> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Person> toVisit = new ArrayDeque<>();
+        for (Person root : roots) {
+            if (root.getId() == null && seen.add(root)) {
+                toVisit.add(root);
+            }
+        }
+        // new addresses by value; their IDs are all null, so equal addresses are the same address
+        Map<Address, Address> savedAddresses = new HashMap<>();
+        while (!toVisit.isEmpty()) {
+            Person person = toVisit.poll();
+            reached.add(person);
+            person.getHomeAddress().map(address -> plan.dedupe(savedAddresses, address)).ifPresent(person::setHomeAddress);
+            person.getBusinessAddress().map(address -> plan.dedupe(savedAddresses, address)).ifPresent(person::setBusinessAddress);
+            List<Person> related = new ArrayList<>(person.getChildren());
+            person.getSpouse().ifPresent(related::add);
+            person.getParent().ifPresent(related::add);
+            for (Person other : related) {
+                if (other.getId() == null && seen.add(other)) {
+                    toVisit.add(other);
+                }
+            }
+        }
+        plan.people.addAll(inDependencyOrder(reached, seen));
+        return plan;
+    }
+
+    // depth first, so a person's spouse and parent come before them, unless the spouse refers back to the person
+    private static List<Person> inDependencyOrder(List<Person> reached, Set<Person> planned) {
+        List<Person> ordered = new ArrayList<>(reached.size());
+        Set<Person> entered = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Person> path = new ArrayDeque<>();
+        for (Person person : reached) {
+            if (entered.add(person)) {
+                path.push(person);
+            }
+            while (!path.isEmpty()) {
+                Person dependency = firstUnentered(path.peek(), planned, entered);
+                if (dependency == null) {
+                    ordered.add(path.pop());
+                } else {
+                    entered.add(dependency);
+                    path.push(dependency);
+                }
+            }
+        }
+        return ordered;
+    }
+
+    private static Person firstUnentered(Person person, Set<Person> planned, Set<Person> entered) {
+        for (Optional<Person> dependency : List.of(person.getSpouse(), person.getParent())) {
+            if (dependency.isPresent() && planned.contains(dependency.get()) && !entered.contains(dependency.get())) {
+                return dependency.get();
+            }
+        }
+        return null;
+    }
+
+    private Address dedupe(Map<Address, Address> savedAddresses, Address address) {
+        if (address.id() != null) {
+            return address;
+        }
+        return savedAddresses.computeIfAbsent(address, a -> {
+            addresses.add(a);
+            return a;
+        });
+    }
+
+    /**
+     * @return The people inserted, in the order they are inserted.
+     */
+    List<Person> getPeople() {
+        return people;
+    }
+
+    /**
+     * Inserts the addresses, then the people, then links the people referring to each other; one batch for each,
+     * or more when there are over batchSize rows.
+     * @return The number of people inserted.
+     */
+    long execute(PersonRepository peopleRepo) throws SQLException {
+        List<Person> unlinked = findUnlinked(peopleRepo.assignsIds());
+        return peopleRepo.withConnection((connection, statements) -> {
+            if (!addresses.isEmpty()) {
+                peopleRepo.insertAddresses(addresses);
+            }
+            long insertedCount = people.isEmpty() ? 0L : peopleRepo.insertAll(people);
+            if (!unlinked.isEmpty()) {
+                peopleRepo.linkAll(unlinked);
+            }
+            return insertedCount;
+        });
+    }
+
+    // people referring to one inserted by this plan that may have no ID yet when they are bound
+    private List<Person> findUnlinked(boolean idsAssignedOnBind) {
+        Map<Person, Integer> positions = new IdentityHashMap<>();
+        for (int i = 0; i < people.size(); i++) {
+            positions.put(people.get(i), i);
+        }
+        List<Person> unlinked = new ArrayList<>();
+        for (int i = 0; i < people.size(); i++) {
+            Person person = people.get(i);
+            for (Optional<Person> other : List.of(person.getSpouse(), person.getParent())) {
+                Integer position = other.map(positions::get).orElse(null);
+                if (position != null && (!idsAssignedOnBind || position > i)) {
+                    unlinked.add(person);
+                    break;
+                }
+            }
+        }
+        return unlinked;
+    }
+}
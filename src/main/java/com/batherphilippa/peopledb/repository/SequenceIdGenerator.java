@@ -0,0 +1,119 @@
+package com.batherphilippa.peopledb.repository;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.regex.Pattern;
+
+/**
+ * Hands out IDs from blocks reserved from a database sequence (pooled-lo): each NEXT VALUE FOR the sequence reserves
+ * the block of as many IDs as the sequence increments by, starting at the value returned, so numbering a block of
+ * rows costs one round trip. IDs are known before rows are inserted, so rows referring to each other can be bound
+ * and batched without reading generated keys back, e.g.
+ * {@code CREATE SEQUENCE PEOPLE_ID_SEQ START WITH 1 INCREMENT BY 50}.
+ * The table's identity column does not see the IDs handed out, so every writer of the table must number its rows
+ * from the sequence, or the sequence must start above any ID the identity column will generate. IDs of a block
+ * not used before the application stops, or of rows rolled back, are skipped.
+ */
+public final class SequenceIdGenerator {
+
+    private static final Pattern SEQUENCE_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*(\\.[A-Za-z_][A-Za-z0-9_]*)?");
+    private static final String FIND_INCREMENT_SQL = """
+            SELECT INCREMENT FROM INFORMATION_SCHEMA.SEQUENCES WHERE SEQUENCE_NAME = ?;
+            """;
+    // a qualified name picks the sequence of its schema from those of the same name in others
+    private static final String FIND_INCREMENT_IN_SCHEMA_SQL = """
+            SELECT INCREMENT FROM INFORMATION_SCHEMA.SEQUENCES WHERE SEQUENCE_NAME = ? AND SEQUENCE_SCHEMA = ?;
+            """;
+
+    private final String sequenceName;
+    private final String nextValueSql;
+    private final int stride;
+    private final int offset;
+    // the sequence's increment, read on the first reservation; guarded by this, as are the fields below
+    private long blockSize;
+    // the rest of the reserved block of sequence values is [nextValue, blockEnd)
+    private long nextValue;
+    private long blockEnd;
+    private long reservedBlocks;
+
+    /**
+     * @param sequenceName Name of the sequence, optionally qualified by its schema; it is written into SQL, so only
+     * letters, digits and underscores are accepted.
+     */
+    public SequenceIdGenerator(String sequenceName) {
+        this(sequenceName, 1, 0);
+    }
+
+    /**
+     * Spreads the sequence's values over a range shared with other generators: each value v becomes the ID
+     * {@code v * stride + offset}, so generators with the same stride and different offsets, e.g. one per shard,
+     * never hand out the same ID, and {@code Math.floorMod(id, stride)} gives back the offset.
+     */
+    public SequenceIdGenerator(String sequenceName, int stride, int offset) {
+        if (!SEQUENCE_NAME.matcher(sequenceName).matches()) {
+            throw new IllegalArgumentException("Invalid sequence name: " + sequenceName);
+        }
+        if (stride < 1 || offset < 0 || offset >= stride) {
+            throw new IllegalArgumentException("Offset must be at least 0 and less than the stride.");
+        }
+        this.sequenceName = sequenceName;
+        this.nextValueSql = "SELECT NEXT VALUE FOR " + sequenceName + ";";
+        this.stride = stride;
+        this.offset = offset;
+    }
+
+    /**
+     * @return The next ID, reserving a new block over the connection when the current one is used up.
+     */
+    synchronized long nextId(Connection connection) throws SQLException {
+        if (nextValue == blockEnd) {
+            reserveBlock(connection);
+        }
+        return nextValue++ * stride + offset;
+    }
+
+    private void reserveBlock(Connection connection) throws SQLException {
+        if (blockSize == 0) {
+            blockSize = findIncrement(connection);
+        }
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(nextValueSql)) {
+            resultSet.next();
+            nextValue = resultSet.getLong(1);
+        }
+        blockEnd = nextValue + blockSize;
+        reservedBlocks++;
+    }
+
+    private long findIncrement(Connection connection) throws SQLException {
+        // unquoted names are stored upper-cased
+        int schemaEnd = sequenceName.lastIndexOf('.');
+        String unqualifiedName = sequenceName.substring(schemaEnd + 1).toUpperCase();
+        try (PreparedStatement ps = connection.prepareStatement(schemaEnd < 0 ? FIND_INCREMENT_SQL : FIND_INCREMENT_IN_SCHEMA_SQL)) {
+            ps.setString(1, unqualifiedName);
+            if (schemaEnd >= 0) {
+                ps.setString(2, sequenceName.substring(0, schemaEnd).toUpperCase());
+            }
+            try (ResultSet resultSet = ps.executeQuery()) {
+                if (!resultSet.next()) {
+                    throw new SQLException("Sequence not found: " + sequenceName);
+                }
+                long increment = resultSet.getLong(1);
+                if (increment < 1) {
+                    throw new SQLException("Sequence must count up to reserve blocks: " + sequenceName);
+                }
+                return increment;
+            }
+        }
+    }
+
+    /**
+     * @return The number of blocks reserved so far, i.e. round trips made for IDs.
+     */
+    public synchronized long getReservedBlocks() {
+        return reservedBlocks;
+    }
+}
@@ -0,0 +1,352 @@
+package com.batherphilippa.peopledb.repository;
+
+import com.batherphilippa.peopledb.exception.DataException;
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Spreads entities over several repositories of the same type, each over a database of its own, e.g. one H2 file
+ * per disk. Shard i numbers the entities it saves from the ID sequence in its database as {@code v * shards + i},
+ * so an entity's ID says which shard holds it: findById, updateById and deleteById go to that shard alone. New
+ * entities are spread over the shards in turn; an entity saved with relations, e.g. a person's spouse and children,
+ * by save or saveAll, is saved to one shard together with them, so reads that join them stay within the shard.
+ * findAll, streamAll, findPage and getCount ask every shard at once, on a virtual thread each, and merge the
+ * results in ID order; they throw a DataException if any shard fails, rather than return the other shards' rows.
+ */
+public class ShardedRepository<T> implements AutoCloseable {
+
+    // rows a shard's scan reads ahead of the merge
+    private static final int SCAN_BUFFER_SIZE = 256;
+    // rows findAll reads per shard, as many as a single repository's findAll, e.g. PersonRepository's
+    private static final int FIND_ALL_ROWS_PER_SHARD = 20;
+
+    private final List<? extends CRUDRepository<T>> shards;
+    private final EntityMetadata<T> metadata;
+    private final Comparator<T> byId;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final AtomicInteger nextShard = new AtomicInteger();
+
+    /**
+     * @param shards Repositories over databases of the same schema, in a fixed order: an entity's shard is its
+     * position in the list, so the list must not be reordered, nor grown, once entities are saved.
+     * @param idSequenceName Sequence numbering saved entities in each shard's database; the shards are given an
+     * ID generator over it, replacing any they had.
+     */
+    public ShardedRepository(List<? extends CRUDRepository<T>> shards, String idSequenceName) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is needed.");
+        }
+        this.shards = List.copyOf(shards);
+        this.metadata = EntityMetadata.of(shards.get(0).getClass());
+        this.byId = Comparator.comparing(metadata::getId);
+        for (int i = 0; i < shards.size(); i++) {
+            shards.get(i).setIdGenerator(new SequenceIdGenerator(idSequenceName, shards.size(), i));
+        }
+    }
+
+    /**
+     * @return The position of the shard holding the entity with the ID.
+     */
+    public int shardOf(Long id) {
+        return Math.floorMod(id, shards.size());
+    }
+
+    private CRUDRepository<T> shardFor(Long id) {
+        return shards.get(shardOf(id));
+    }
+
+    // the shard a new entity is saved to
+    private int nextShard() {
+        return Math.floorMod(nextShard.getAndIncrement(), shards.size());
+    }
+
+    /**
+     * Saves a new entity to the shard of the entities it relates to, e.g. its spouse, as saveAll does, so their
+     * foreign keys stay within one shard.
+     */
+    public T save(T entity) {
+        Long id = metadata.getId(entity);
+        if (id != null) {
+            return shardFor(id).save(entity);
+        }
+        Map<T, Integer> shardOfNew = new IdentityHashMap<>();
+        assignShard(entity, shardOfNew);
+        return shards.get(shardOfNew.get(entity)).save(entity);
+    }
+
+    /**
+     * Splits the new entities into groups connected by their relations, e.g. a family, deals the groups out to the
+     * shards in turn and saves each shard's share in parallel. Throws a DataException if any shard fails to save its
+     * share; the other shards' shares may be saved.
+     */
+    public List<T> saveAll(Collection<T> entities) {
+        List<List<T>> shares = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            shares.add(new ArrayList<>());
+        }
+        Map<T, Integer> shardOfNew = new IdentityHashMap<>();
+        for (T entity : entities) {
+            Long id = metadata.getId(entity);
+            if (id == null && !shardOfNew.containsKey(entity)) {
+                assignShard(entity, shardOfNew);
+            }
+            shares.get(id == null ? shardOfNew.get(entity) : shardOf(id)).add(entity);
+        }
+        fanOut(i -> shares.get(i).isEmpty() ? 0L : shards.get(i).saveGraphs(shares.get(i)));
+        return new ArrayList<>(entities);
+    }
+
+    // gives the new entity, and every new entity connected to it by relations, one shard: that of a related entity
+    // already given one, or already saved, or else the next in turn
+    private void assignShard(T entity, Map<T, Integer> shardOfNew) {
+        CRUDRepository<T> anyShard = shards.get(0);
+        List<T> group = new ArrayList<>();
+        Set<T> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<T> toVisit = new ArrayDeque<>();
+        seen.add(entity);
+        toVisit.add(entity);
+        Integer groupShard = null;
+        while (!toVisit.isEmpty()) {
+            T member = toVisit.poll();
+            group.add(member);
+            for (T other : anyShard.related(member)) {
+                Long id = metadata.getId(other);
+                Integer otherShard = id == null ? shardOfNew.get(other) : Integer.valueOf(shardOf(id));
+                if (otherShard != null) {
+                    if (groupShard == null) {
+                        groupShard = otherShard;
+                    }
+                } else if (seen.add(other)) {
+                    toVisit.add(other);
+                }
+            }
+        }
+        int shard = groupShard == null ? nextShard() : groupShard;
+        group.forEach(member -> shardOfNew.put(member, shard));
+    }
+
+    public Optional<T> findById(Long id) {
+        return shardFor(id).findById(id);
+    }
+
+    public T updateById(T entity) {
+        return shardFor(metadata.getId(entity)).updateById(entity);
+    }
+
+    public void deleteById(T entity) {
+        shardFor(metadata.getId(entity)).deleteById(entity);
+    }
+
+    /**
+     * @return The entities with the lowest IDs across the shards, FIND_ALL_ROWS_PER_SHARD for each shard, in ID
+     * order: the first page findPage would read, rather than whichever rows each shard's findAll happens to return.
+     */
+    public List<T> findAll() {
+        return new ArrayList<>(findPage(null, FIND_ALL_ROWS_PER_SHARD * shards.size()).content());
+    }
+
+    public long getCount() {
+        return fanOut(i -> shards.get(i).countRows()).stream().mapToLong(Long::longValue).sum();
+    }
+
+    /**
+     * Keyset pagination across the shards: each shard reads up to limit entities after afterId, and the page is
+     * the first limit of them in ID order.
+     */
+    public Page<T> findPage(Long afterId, int limit) {
+        List<Page<T>> shardPages = fanOut(i -> shards.get(i).readPage(afterId, limit));
+        List<T> entities = new ArrayList<>();
+        shardPages.forEach(page -> entities.addAll(page.content()));
+        entities.sort(byId);
+        boolean hasNext = entities.size() > limit || shardPages.stream().anyMatch(Page::hasNext);
+        List<T> content = List.copyOf(entities.subList(0, Math.min(limit, entities.size())));
+        Long lastId = content.isEmpty() ? afterId : metadata.getId(content.get(content.size() - 1));
+        return new Page<>(content, lastId, hasNext);
+    }
+
+    /**
+     * Streams every shard's rows, merged in ID order. Each shard is read on a thread of its own, up to
+     * SCAN_BUFFER_SIZE rows ahead of the merge; close the stream to stop the reads and release their connections.
+     */
+    public Stream<T> streamAll() {
+        List<ShardScan<T>> scans = new ArrayList<>(shards.size());
+        for (CRUDRepository<T> shard : shards) {
+            ShardScan<T> scan = new ShardScan<>();
+            scans.add(scan);
+            // opened, read and closed on the one thread, as a connection is released on the thread that leased it
+            executor.submit(() -> scan.read(shard));
+        }
+        MergedScan<T> merged = new MergedScan<>(scans, byId);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(merged, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> scans.forEach(ShardScan::cancel));
+    }
+
+    @FunctionalInterface
+    private interface ShardOperation<R> {
+        R apply(int shardIdx) throws SQLException;
+    }
+
+    // runs the operation on every shard at once, given the shard's position, returning the results in shard order;
+    // any shard failing fails the whole operation rather than leaving its share out
+    private <R> List<R> fanOut(ShardOperation<R> operation) {
+        List<Future<R>> futures = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            int shardIdx = i;
+            futures.add(executor.submit(() -> operation.apply(shardIdx)));
+        }
+        List<R> results = new ArrayList<>(futures.size());
+        try {
+            for (Future<R> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataException("Interrupted waiting for shards", e);
+        } catch (ExecutionException e) {
+            throw new DataException("Unable to complete operation on shard", e.getCause());
+        }
+        return results;
+    }
+
+    /**
+     * Waits for running shard operations to finish, then stops accepting new ones.
+     */
+    @Override
+    public void close() {
+        executor.close();
+    }
+
+    // one shard's rows, handed from the thread reading them to the merge through a bounded buffer
+    private static final class ShardScan<E> {
+        private static final Object END = new Object();
+
+        private record Failure(RuntimeException exception) {}
+
+        private final BlockingQueue<Object> buffer = new ArrayBlockingQueue<>(SCAN_BUFFER_SIZE);
+        private volatile boolean cancelled;
+        private Object head;
+
+        void read(CRUDRepository<E> shard) {
+            try (Stream<E> rows = shard.streamAll()) {
+                Iterator<E> iterator = rows.iterator();
+                while (iterator.hasNext()) {
+                    if (!offer(iterator.next())) {
+                        return;
+                    }
+                }
+                offer(END);
+            } catch (RuntimeException e) {
+                offer(new Failure(e));
+            }
+        }
+
+        // waits for room, but gives up once the merge is closed, so the read can end and its connection be released
+        private boolean offer(Object row) {
+            try {
+                while (!cancelled) {
+                    if (buffer.offer(row, 100, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+
+        // the next row without taking it, or null at the end of the shard
+        @SuppressWarnings("unchecked")
+        E peek() {
+            if (head == null) {
+                try {
+                    head = buffer.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new DataException("Interrupted reading shard", e);
+                }
+            }
+            if (head instanceof Failure failure) {
+                throw new DataException("Unable to read from shard", failure.exception());
+            }
+            return head == END ? null : (E) head;
+        }
+
+        E take() {
+            E row = peek();
+            head = null;
+            return row;
+        }
+    }
+
+    // k-way merge of the shards' scans, each already in ID order
+    private static final class MergedScan<E> implements Iterator<E> {
+        private final PriorityQueue<ShardScan<E>> scans;
+        private List<ShardScan<E>> unopened;
+
+        MergedScan(List<ShardScan<E>> scans, Comparator<E> byId) {
+            this.scans = new PriorityQueue<>(scans.size(), (a, b) -> byId.compare(a.peek(), b.peek()));
+            this.unopened = scans;
+        }
+
+        // the first rows are waited for on first use rather than when the stream is opened
+        private void open() {
+            if (unopened != null) {
+                for (ShardScan<E> scan : unopened) {
+                    if (scan.peek() != null) {
+                        scans.add(scan);
+                    }
+                }
+                unopened = null;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            open();
+            return !scans.isEmpty();
+        }
+
+        @Override
+        public E next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ShardScan<E> scan = scans.poll();
+            E row = scan.take();
+            if (scan.peek() != null) {
+                scans.add(scan);
+            }
+            return row;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.batherphilippa.peopledb.repository;
+
+import com.batherphilippa.peopledb.domain.CrudOperation;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Keeps the most recent statements that took longer than a threshold, with their SQL and bind values and, if asked
+ * for, the plan H2's EXPLAIN ANALYZE reports for them.
+ */
+public final class SlowQueryLog implements RepositoryListener {
+
+    private final long thresholdNanos;
+    private final boolean explainAnalyze;
+    private final int capacity;
+    // guarded by itself; oldest first
+    private final Deque<SlowQuery> entries = new ArrayDeque<>();
+
+    /**
+     * @param plan The EXPLAIN ANALYZE output; null if not asked for, or for writes, which aren't run twice.
+     */
+    public record SlowQuery(Class<?> entityType, CrudOperation operationType, String sql, String bindValues,
+                            Duration elapsed, String plan) {}
+
+    /**
+     * @param threshold Statements taking longer are logged.
+     * @param explainAnalyze Whether to re-run slow queries under EXPLAIN ANALYZE, on the thread and connection that
+     * ran them, to capture their plan. Doubles the cost of each slow query.
+     * @param capacity Number of entries kept; the oldest is dropped first.
+     */
+    public SlowQueryLog(Duration threshold, boolean explainAnalyze, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1.");
+        }
+        this.thresholdNanos = threshold.toNanos();
+        this.explainAnalyze = explainAnalyze;
+        this.capacity = capacity;
+    }
+
+    @Override
+    public void onStatement(StatementEvent event) {
+        if (event.getElapsedNanos() <= thresholdNanos) {
+            return;
+        }
+        String plan = null;
+        if (explainAnalyze) {
+            try {
+                plan = event.explainAnalyze().orElse(null);
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+        SlowQuery entry = new SlowQuery(event.getEntityType(), event.getOperationType(), event.getSql(),
+                event.getBindValues(), Duration.ofNanos(event.getElapsedNanos()), plan);
+        synchronized (entries) {
+            if (entries.size() == capacity) {
+                entries.removeFirst();
+            }
+            entries.addLast(entry);
+        }
+    }
+
+    /**
+     * @return The logged statements, oldest first.
+     */
+    public List<SlowQuery> getEntries() {
+        synchronized (entries) {
+            return new ArrayList<>(entries);
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.batherphilippa.peopledb.repository;
+
+import com.batherphilippa.peopledb.domain.CrudOperation;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bounded cache of the prepared statements of one connection, keyed by operation and SQL text, so each
+ * statement is parsed and planned once rather than on every call. The least recently used statement is closed
+ * and dropped when the cache is full, unless the operation running on the connection has used it.
+ * The cache is owned by the ConnectionProvider handing out its connection, and is cleared when that connection
+ * is closed; repositories sharing a provider share its caches.
+ */
+public final class StatementCache {
+    static final int DEFAULT_CAPACITY = 64;
+
+    private final Connection connection;
+    private final LinkedHashMap<Key, PreparedStatement> statements;
+    // statements used by the operation running on the connection, e.g. one with a batch still being added to by a
+    // caller further up; they are not evicted until the outermost operation ends
+    private final Set<Key> inUse = new HashSet<>();
+    private int operationDepth;
+    private int capacity;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    @FunctionalInterface
+    interface StatementFactory {
+        PreparedStatement prepare(Connection connection, String sql) throws SQLException;
+    }
+
+    private record Key(CrudOperation operationType, String sql) {}
+
+    StatementCache(Connection connection) {
+        this.connection = connection;
+        this.capacity = DEFAULT_CAPACITY;
+        // access order: iteration starts at the least recently used statement
+        this.statements = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Marks the start of an operation on the connection; calls nest, as nested operations share the connection.
+     */
+    synchronized void beginOperation() {
+        operationDepth++;
+    }
+
+    /**
+     * Marks the end of an operation; once the outermost ends, its statements may be evicted again.
+     */
+    synchronized void endOperation() {
+        if (--operationDepth == 0) {
+            inUse.clear();
+            evictOverCapacity();
+        }
+    }
+
+    /**
+     * @return The cached statement for the operation and SQL, prepared with the factory on a miss.
+     */
+    synchronized PreparedStatement prepare(CrudOperation operationType, String sql, StatementFactory factory) throws SQLException {
+        Key key = new Key(operationType, sql);
+        PreparedStatement ps = statements.get(key);
+        if (operationDepth > 0) {
+            inUse.add(key);
+        }
+        if (ps != null && !ps.isClosed()) {
+            hits++;
+            return ps;
+        }
+        misses++;
+        ps = factory.prepare(connection, sql);
+        statements.put(key, ps);
+        evictOverCapacity();
+        return ps;
+    }
+
+    synchronized PreparedStatement prepare(CrudOperation operationType, String sql) throws SQLException {
+        return prepare(operationType, sql, Connection::prepareStatement);
+    }
+
+    public synchronized void setCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1.");
+        }
+        this.capacity = capacity;
+        evictOverCapacity();
+    }
+
+    // the cache may stay over capacity while the statements it holds are in use
+    private void evictOverCapacity() {
+        Iterator<Map.Entry<Key, PreparedStatement>> iterator = statements.entrySet().iterator();
+        while (statements.size() > capacity && iterator.hasNext()) {
+            Map.Entry<Key, PreparedStatement> eldest = iterator.next();
+            if (inUse.contains(eldest.getKey())) {
+                continue;
+            }
+            iterator.remove();
+            evictions++;
+            closeQuietly(eldest.getValue());
+        }
+    }
+
+    /**
+     * Closes and forgets every cached statement; the connection itself is left open.
+     */
+    public synchronized void clear() {
+        statements.values().forEach(StatementCache::closeQuietly);
+        statements.clear();
+    }
+
+    public synchronized int size() {
+        return statements.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    private static void closeQuietly(PreparedStatement ps) {
+        try {
+            ps.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.batherphilippa.peopledb.repository;
+
+import com.batherphilippa.peopledb.domain.CrudOperation;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Optional;
+
+/**
+ * One statement, or JDBC batch, a repository executed. Only valid during the listener call: the statement and
+ * connection it refers to are reused once the listener returns.
+ */
+public final class StatementEvent {
+
+    private final Class<?> entityType;
+    private final CrudOperation operationType;
+    private final String sql;
+    private final long elapsedNanos;
+    private final int batchSize;
+    private final long rowsRead;
+    private final long rowsWritten;
+    private final Statement statement;
+    // the query's parameters, to re-run it under EXPLAIN ANALYZE; null for writes, which must not be run twice
+    private final Object[] parameters;
+
+    StatementEvent(Class<?> entityType, CrudOperation operationType, String sql, long elapsedNanos, int batchSize,
+                   long rowsRead, long rowsWritten, Statement statement, Object[] parameters) {
+        this.entityType = entityType;
+        this.operationType = operationType;
+        this.sql = sql;
+        this.elapsedNanos = elapsedNanos;
+        this.batchSize = batchSize;
+        this.rowsRead = rowsRead;
+        this.rowsWritten = rowsWritten;
+        this.statement = statement;
+        this.parameters = parameters;
+    }
+
+    public Class<?> getEntityType() {
+        return entityType;
+    }
+
+    public CrudOperation getOperationType() {
+        return operationType;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * @return Time taken to execute the statement and read its rows; for streamAll, from opening to closing the stream.
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return Number of parameter sets executed together; 1 unless the statement ran as a JDBC batch.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public long getRowsRead() {
+        return rowsRead;
+    }
+
+    public long getRowsWritten() {
+        return rowsWritten;
+    }
+
+    /**
+     * @return The values bound to the statement as the driver describes them, e.g. H2's "{1: CAST(42 AS BIGINT)}";
+     * empty if it has none. For a batch, the last values bound.
+     */
+    public String getBindValues() {
+        String description = statement.toString();
+        int valuesIdx = description.lastIndexOf(" {");
+        return valuesIdx < 0 ? "" : description.substring(valuesIdx + 1);
+    }
+
+    /**
+     * Executes the query again, under H2's EXPLAIN ANALYZE, on the same connection.
+     * @return The plan, annotated with the rows each table scanned; empty for writes.
+     */
+    public Optional<String> explainAnalyze() throws SQLException {
+        if (parameters == null) {
+            return Optional.empty();
+        }
+        try (PreparedStatement ps = statement.getConnection().prepareStatement("EXPLAIN ANALYZE " + sql)) {
+            for (int i = 0; i < parameters.length; i++) {
+                ps.setObject(i + 1, parameters[i]);
+            }
+            try (ResultSet resultSet = ps.executeQuery()) {
+                return resultSet.next() ? Optional.of(resultSet.getString(1)) : Optional.empty();
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.batherphilippa.peopledb.repository;
+
+import com.batherphilippa.peopledb.domain.Person;
+import com.batherphilippa.peopledb.exception.DataException;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the people to insert, update and delete in memory and writes them together on flush, each kind of change
+ * as JDBC batches instead of a statement per person. Inserts follow foreign key order: new addresses, then new people
+ * with their spouse and parent left unset, then those links, so people referring to each other, e.g. a married couple,
+ * need no statement of their own. Updates and deletes follow.
+ * A unit of work opens an {@link IdentityMap} on the calling thread until it is closed, so updates write only the
+ * columns that changed; like the identity map, use it from that thread only. Changes not flushed are discarded on close.
+ */
+public final class UnitOfWork implements AutoCloseable {
+
+    private enum Change { NEW, DIRTY, DELETED }
+
+    private final PersonRepository peopleRepo;
+    private final IdentityMap identityMap;
+    // by identity, as people are equal by ID and new ones have none
+    private final Map<Person, Change> changes = new IdentityHashMap<>();
+    // registration order, which is the order rows are written in
+    private final List<Person> registered = new ArrayList<>();
+
+    private UnitOfWork(PersonRepository peopleRepo) {
+        this.peopleRepo = peopleRepo;
+        this.identityMap = IdentityMap.open();
+    }
+
+    /**
+     * @return A new unit of work writing through the repository, bound to the calling thread until it is closed.
+     */
+    public static UnitOfWork begin(PersonRepository peopleRepo) {
+        return new UnitOfWork(peopleRepo);
+    }
+
+    /**
+     * Registers a person to be saved. Its addresses, spouse and children that have no ID yet are saved with it,
+     * as save would, each once however many people refer to it.
+     */
+    public void registerNew(Person person) {
+        if (person.getId() != null) {
+            throw new IllegalArgumentException("Person already saved: " + person.getId());
+        }
+        register(person, Change.NEW);
+    }
+
+    /**
+     * Registers a saved person to be updated; a person registered as new or deleted is not also updated.
+     */
+    public void registerDirty(Person person) {
+        if (person.getId() == null) {
+            throw new IllegalArgumentException("Person not saved yet");
+        }
+        if (!changes.containsKey(person)) {
+            register(person, Change.DIRTY);
+        }
+    }
+
+    /**
+     * Registers a person to be deleted; a person registered as new is then not saved at all. A deleted person must
+     * no longer be referred to, as a spouse or parent, by one that stays.
+     */
+    public void registerDeleted(Person person) {
+        Change change = changes.get(person);
+        if (change == Change.NEW) {
+            changes.remove(person);
+            registered.removeIf(p -> p == person);
+        } else if (person.getId() != null && change != Change.DELETED) {
+            if (change == null) {
+                registered.add(person);
+            }
+            changes.put(person, Change.DELETED);
+        }
+    }
+
+    private void register(Person person, Change change) {
+        if (changes.putIfAbsent(person, change) == null) {
+            registered.add(person);
+        }
+    }
+
+    /**
+     * Writes the registered changes on one connection, in the caller's transaction if there is one, and forgets them.
+     * @throws DataException if a statement fails; changes written before it are rolled back only with the transaction.
+     */
+    public void flush() {
+        try {
+            peopleRepo.withConnection((connection, statements) -> {
+                write();
+                return null;
+            });
+        } catch (SQLException e) {
+            throw new DataException("Unable to flush unit of work", e);
+        }
+    }
+
+    /**
+     * Flushes in a transaction of its own and commits it, or rolls it back if a statement fails. A connection in
+     * manual commit mode already has a transaction, which is the one committed. After a rollback, people saved by the
+     * failed flush may still hold the IDs they were given; discard them with the unit of work.
+     */
+    public void commit() {
+        try {
+            peopleRepo.inTransaction((connection, statements) -> {
+                write();
+                return null;
+            });
+        } catch (SQLException e) {
+            throw new DataException("Unable to commit unit of work", e);
+        }
+    }
+
+    private void write() throws SQLException {
+        List<Person> newPeople = new ArrayList<>();
+        List<Person> dirtyPeople = new ArrayList<>();
+        List<Long> deletedIds = new ArrayList<>();
+        for (Person person : registered) {
+            switch (changes.get(person)) {
+                case NEW -> newPeople.add(person);
+                case DIRTY -> dirtyPeople.add(person);
+                case DELETED -> deletedIds.add(person.getId());
+            }
+        }
+        SavePlan.of(newPeople).execute(peopleRepo);
+        if (!dirtyPeople.isEmpty()) {
+            peopleRepo.updateColumns(dirtyPeople);
+        }
+        if (!deletedIds.isEmpty()) {
+            peopleRepo.deleteIds(deletedIds);
+        }
+        changes.clear();
+        registered.clear();
+    }
+
+    @Override
+    public void close() {
+        changes.clear();
+        registered.clear();
+        identityMap.close();
+    }
+}
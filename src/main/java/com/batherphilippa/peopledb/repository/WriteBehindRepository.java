@@ -0,0 +1,206 @@
+package com.batherphilippa.peopledb.repository;
+
+import com.batherphilippa.peopledb.exception.DataException;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Write-behind facade over a repository, for callers writing faster than one commit per write allows. Saves,
+ * updates and deletes are queued and return at once; a background writer takes up to maxGroupSize of them, or as
+ * many as arrive within maxDelay of the first, and commits them as one transaction, with the saves, updates and
+ * deletes each sent as JDBC batches. Writes to the same ID within a group are coalesced: only the last update is
+ * written, and a delete wins over updates before or after it. The futures complete once the group is committed,
+ * or exceptionally with a DataException if it was rolled back. When the queue is full, callers block until the
+ * writer catches up.
+ * The writer uses the repository's connections, so give it a repository over a pool, or use the repository only
+ * through this facade while it is open.
+ */
+public class WriteBehindRepository<T> implements AutoCloseable {
+
+    private enum Kind { SAVE, UPDATE, DELETE }
+
+    private record PendingWrite<E>(Kind kind, E entity, Long id, CompletableFuture<E> committed) {}
+
+    private final CRUDRepository<T> repository;
+    private final EntityMetadata<T> metadata;
+    private final BlockingQueue<PendingWrite<T>> queue;
+    private final int maxGroupSize;
+    private final long maxDelayNanos;
+    private final Thread writer;
+    // writes are enqueued under the read lock, so none is enqueued once close has taken the write lock
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private volatile boolean closed;
+
+    /**
+     * @param capacity Number of writes queued before callers block.
+     * @param maxGroupSize Most writes committed together.
+     * @param maxDelay Longest a write waits for others to join its group.
+     */
+    public WriteBehindRepository(CRUDRepository<T> repository, int capacity, int maxGroupSize, Duration maxDelay) {
+        if (capacity < 1 || maxGroupSize < 1) {
+            throw new IllegalArgumentException("Capacity and max group size must be at least 1.");
+        }
+        if (maxDelay.isNegative()) {
+            throw new IllegalArgumentException("Max delay must not be negative.");
+        }
+        this.repository = repository;
+        this.metadata = EntityMetadata.of(repository.getClass());
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.maxGroupSize = maxGroupSize;
+        this.maxDelayNanos = maxDelay.toNanos();
+        this.writer = Thread.ofVirtual().name("write-behind").start(this::writeGroups);
+    }
+
+    /**
+     * @return The entity, with its ID, once it is committed.
+     */
+    public CompletableFuture<T> saveAsync(T entity) {
+        return enqueue(Kind.SAVE, entity, null);
+    }
+
+    public CompletableFuture<T> updateByIdAsync(T entity) {
+        return enqueue(Kind.UPDATE, entity, requireId(entity));
+    }
+
+    public CompletableFuture<Void> deleteByIdAsync(T entity) {
+        return enqueue(Kind.DELETE, entity, requireId(entity)).thenApply(deleted -> null);
+    }
+
+    private Long requireId(T entity) {
+        Long id = metadata.getId(entity);
+        if (id == null) {
+            throw new IllegalArgumentException("Entity not saved yet");
+        }
+        return id;
+    }
+
+    private CompletableFuture<T> enqueue(Kind kind, T entity, Long id) {
+        PendingWrite<T> write = new PendingWrite<>(kind, entity, id, new CompletableFuture<>());
+        closeLock.readLock().lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Write-behind repository is closed");
+            }
+            // blocks while the queue is full, which is what holds fast callers back
+            queue.put(write);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            write.committed().completeExceptionally(e);
+        } finally {
+            closeLock.readLock().unlock();
+        }
+        return write.committed();
+    }
+
+    private void writeGroups() {
+        List<PendingWrite<T>> group = new ArrayList<>(maxGroupSize);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                PendingWrite<T> first = queue.poll(Math.max(maxDelayNanos, TimeUnit.MILLISECONDS.toNanos(10)), TimeUnit.NANOSECONDS);
+                if (first == null) {
+                    continue;
+                }
+                group.add(first);
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (group.size() < maxGroupSize) {
+                    // whatever is queued already joins without waiting
+                    if (queue.drainTo(group, maxGroupSize - group.size()) > 0) {
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    PendingWrite<T> next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        break;
+                    }
+                    group.add(next);
+                }
+            } catch (InterruptedException e) {
+                // not expected, as close waits for the queue to drain instead; the group taken so far is still written
+            }
+            if (!group.isEmpty()) {
+                commit(group);
+                group.clear();
+            }
+        }
+    }
+
+    private void commit(List<PendingWrite<T>> group) {
+        List<T> saves = new ArrayList<>();
+        // the write that stands for each ID; insertion ordered, so IDs are written in the order they were first queued
+        Map<Long, PendingWrite<T>> latestById = new LinkedHashMap<>();
+        for (PendingWrite<T> write : group) {
+            if (write.kind() == Kind.SAVE) {
+                saves.add(write.entity());
+            } else {
+                PendingWrite<T> latest = latestById.get(write.id());
+                if (latest == null || latest.kind() != Kind.DELETE) {
+                    latestById.put(write.id(), write);
+                }
+            }
+        }
+        List<T> updates = new ArrayList<>();
+        List<Long> deletes = new ArrayList<>();
+        for (PendingWrite<T> write : latestById.values()) {
+            if (write.kind() == Kind.UPDATE) {
+                updates.add(write.entity());
+            } else {
+                deletes.add(write.id());
+            }
+        }
+        try {
+            repository.inTransaction((connection, statements) -> {
+                if (!saves.isEmpty()) {
+                    repository.saveGraphs(saves);
+                }
+                if (!updates.isEmpty()) {
+                    repository.updateColumns(updates);
+                }
+                if (!deletes.isEmpty()) {
+                    repository.deleteIds(deletes);
+                }
+                return null;
+            });
+        } catch (SQLException | RuntimeException e) {
+            DataException failure = new DataException("Unable to commit write-behind group", e);
+            group.forEach(write -> write.committed().completeExceptionally(failure));
+            return;
+        }
+        // coalesced writes complete too: the write that replaced them is committed
+        group.forEach(write -> write.committed().complete(write.entity()));
+    }
+
+    /**
+     * Stops accepting writes, then waits for the queued ones to be committed.
+     */
+    @Override
+    public void close() {
+        closeLock.writeLock().lock();
+        try {
+            closed = true;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
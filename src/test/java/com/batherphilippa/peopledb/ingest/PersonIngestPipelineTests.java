@@ -0,0 +1,128 @@
+package com.batherphilippa.peopledb.ingest;
+
+import com.batherphilippa.peopledb.domain.Person;
+import com.batherphilippa.peopledb.exception.IngestException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PersonIngestPipelineTests {
+
+    @TempDir
+    Path tempDir;
+    private Connection connection;
+    private Path csvFile;
+    private Path checkpointFile;
+
+    @BeforeEach
+    public void setUp() throws SQLException, IOException {
+        // the pipeline commits, so keep it away from the shared test database
+        connection = DriverManager.getConnection("jdbc:h2:mem:");
+        csvFile = tempDir.resolve("people.csv");
+        checkpointFile = tempDir.resolve("people.checkpoint");
+        String header = IntStream.range(0, 30).mapToObj(i -> "Col" + i).collect(Collectors.joining(","));
+        List<String> lines = new ArrayList<>(List.of(header));
+        IntStream.rangeClosed(1, 25).mapToObj(this::csvLine).forEach(lines::add);
+        Files.write(csvFile, lines);
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void canParsePerson() {
+        Person person = new PersonCsvParser().parse(csvLine(7));
+        assertThat(person.getFirstname()).isEqualTo("First7");
+        assertThat(person.getLastname()).isEqualTo("Last7");
+        assertThat(person.getEmail()).isEqualTo("person7@example.com");
+        assertThat(person.getDob()).isEqualTo(ZonedDateTime.of(1980, 11, 7, 15, 15, 7, 0, ZoneId.of("+0")));
+        assertThat(person.getSalary()).isEqualByComparingTo(new BigDecimal("1007"));
+    }
+
+    @Test
+    public void canIngestAllPeopleInFileOrder() throws IOException {
+        List<Person> written = new ArrayList<>();
+        PersonIngestPipeline pipeline = newPipeline(chunk -> {
+            written.addAll(chunk);
+            return chunk.size();
+        });
+        long count = pipeline.ingest(csvFile, checkpointFile);
+        assertThat(count).isEqualTo(25);
+        assertThat(written.stream().map(Person::getFirstname).toList())
+                .isEqualTo(IntStream.rangeClosed(1, 25).mapToObj(i -> "First" + i).toList());
+    }
+
+    @Test
+    public void canResumeFromLastCommit() throws IOException {
+        List<List<Person>> chunks = new ArrayList<>();
+        PersonIngestPipeline failingPipeline = newPipeline(chunk -> {
+            if (chunks.size() == 2) {
+                throw new IllegalStateException("database went away");
+            }
+            chunks.add(chunk);
+            return chunk.size();
+        });
+        assertThrows(IllegalStateException.class, () -> failingPipeline.ingest(csvFile, checkpointFile));
+
+        List<Person> resumed = new ArrayList<>();
+        long count = newPipeline(chunk -> {
+            resumed.addAll(chunk);
+            return chunk.size();
+        }).ingest(csvFile, checkpointFile);
+        // two chunks of four were committed before the failure
+        assertThat(count).isEqualTo(17);
+        assertThat(resumed.get(0).getFirstname()).isEqualTo("First9");
+    }
+
+    @Test
+    public void unparseableLineFailsIngest() throws IOException {
+        Files.writeString(csvFile, "header\nnot,enough,columns\n");
+        PersonIngestPipeline pipeline = newPipeline(List::size);
+        assertThrows(IngestException.class, () -> pipeline.ingest(csvFile, checkpointFile));
+    }
+
+    private PersonIngestPipeline newPipeline(PersonIngestPipeline.BatchWriter writer) {
+        PersonIngestPipeline pipeline = new PersonIngestPipeline(connection, writer);
+        pipeline.setChunkSize(4);
+        pipeline.setCommitInterval(8);
+        pipeline.setParserThreads(3);
+        pipeline.setQueueCapacity(2);
+        return pipeline;
+    }
+
+    private String csvLine(int i) {
+        String[] values = new String[30];
+        for (int col = 0; col < values.length; col++) {
+            values[col] = "x" + col;
+        }
+        values[2] = "First" + i;
+        values[4] = "Last" + i;
+        values[6] = "person" + i + "@example.com";
+        values[10] = "11/" + i + "/1980";
+        values[11] = String.format("03:15:%02d PM", i);
+        values[25] = String.valueOf(1000 + i);
+        return String.join(",", values);
+    }
+}
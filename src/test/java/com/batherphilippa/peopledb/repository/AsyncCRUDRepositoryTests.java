@@ -0,0 +1,69 @@
+package com.batherphilippa.peopledb.repository;
+
+import com.batherphilippa.peopledb.domain.Person;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AsyncCRUDRepositoryTests {
+
+    private JdbcDataSource dataSource;
+    private ConnectionPool pool;
+    private PersonRepository peopleRepo;
+
+    @BeforeEach
+    public void setUp() throws SQLException {
+        dataSource = TestDatabase.create();
+        pool = new ConnectionPool(dataSource, 4);
+        peopleRepo = new PersonRepository(pool);
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        pool.close();
+        TestDatabase.shutdown(dataSource);
+    }
+
+    @Test
+    public void canRunManyLookupsConcurrently() throws Exception {
+        List<Person> savedPeople = peopleRepo.saveAll(IntStream.range(0, 50)
+                .mapToObj(i -> new Person("John" + i, "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6"))))
+                .toList());
+        try (AsyncCRUDRepository<Person> asyncPeopleRepo = new AsyncCRUDRepository<>(peopleRepo)) {
+            List<CompletableFuture<Optional<Person>>> lookups = IntStream.range(0, 2_000)
+                    .mapToObj(i -> asyncPeopleRepo.findByIdAsync(savedPeople.get(i % savedPeople.size()).getId()))
+                    .toList();
+            CompletableFuture.allOf(lookups.toArray(CompletableFuture[]::new)).get(30, TimeUnit.SECONDS);
+            for (int i = 0; i < lookups.size(); i++) {
+                assertThat(lookups.get(i).join().get()).isEqualTo(savedPeople.get(i % savedPeople.size()));
+            }
+        }
+        assertThat(pool.getLeasedCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void canSaveFindAndDeleteAsync() throws Exception {
+        try (AsyncCRUDRepository<Person> asyncPeopleRepo = new AsyncCRUDRepository<>(peopleRepo)) {
+            Person person = new Person("John", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
+            Optional<Person> found = asyncPeopleRepo.saveAsync(person)
+                    .thenCompose(savedPerson -> asyncPeopleRepo.findByIdAsync(savedPerson.getId()))
+                    .get(5, TimeUnit.SECONDS);
+            assertThat(found.get()).isEqualTo(person);
+            assertThat(asyncPeopleRepo.findAllAsync().get(5, TimeUnit.SECONDS)).contains(person);
+            asyncPeopleRepo.deleteByIdAsync(person).get(5, TimeUnit.SECONDS);
+            assertThat(asyncPeopleRepo.findByIdAsync(person.getId()).get(5, TimeUnit.SECONDS)).isEmpty();
+        }
+    }
+}
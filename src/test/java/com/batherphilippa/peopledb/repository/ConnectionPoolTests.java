@@ -0,0 +1,114 @@
+package com.batherphilippa.peopledb.repository;
+
+import com.batherphilippa.peopledb.domain.Address;
+import com.batherphilippa.peopledb.domain.Person;
+import com.batherphilippa.peopledb.domain.Region;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ConnectionPoolTests {
+
+    private JdbcDataSource dataSource;
+    private ConnectionPool pool;
+
+    @BeforeEach
+    public void setUp() throws SQLException {
+        dataSource = TestDatabase.create();
+        pool = new ConnectionPool(dataSource, 4);
+        pool.setAcquireTimeout(Duration.ofSeconds(5));
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        pool.close();
+        TestDatabase.shutdown(dataSource);
+    }
+
+    @Test
+    public void canShareRepositoryBetweenThreads() throws Exception {
+        PersonRepository peopleRepo = new PersonRepository(pool);
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<Person>> found = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                String name = "John" + i;
+                found.add(executor.submit(() -> {
+                    Person person = new Person(name, "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
+                    person.setHomeAddress(new Address(null, "34 Hawthorn Close", "null", "Chichester", "WS", "PO19 3DZ", "UK", "West Sussex", Region.SOUTH));
+                    Person savedPerson = peopleRepo.save(person);
+                    return peopleRepo.findById(savedPerson.getId()).get();
+                }));
+            }
+            for (int i = 0; i < found.size(); i++) {
+                Person person = found.get(i).get(10, TimeUnit.SECONDS);
+                assertThat(person.getFirstname()).isEqualTo("John" + i);
+                assertThat(person.getHomeAddress().get().county()).isEqualTo("West Sussex");
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(peopleRepo.getCount()).isEqualTo(200);
+        assertThat(pool.getLeasedCount()).isEqualTo(0);
+        assertThat(pool.getIdleCount()).isLessThanOrEqualTo(4);
+    }
+
+    @Test
+    public void nestedOperationsShareOneConnection() {
+        ConnectionPool singleConnectionPool = new ConnectionPool(dataSource, 1);
+        singleConnectionPool.setAcquireTimeout(Duration.ofSeconds(1));
+        PersonRepository peopleRepo = new PersonRepository(singleConnectionPool);
+        Person person = new Person("John", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
+        person.setSpouse(new Person("Jackie", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6"))));
+        person.addChild(new Person("Sammy", "Smith", ZonedDateTime.of(2006,10,10,15,3,0,0, ZoneId.of("-6"))));
+        // would time out waiting for a second connection if nested saves did not share the first
+        Person savedPerson = peopleRepo.save(person);
+        assertThat(savedPerson.getSpouse().get().getId()).isGreaterThan(0);
+        singleConnectionPool.close();
+    }
+
+    @Test
+    public void acquireTimesOutWhenPoolIsExhausted() throws Exception {
+        ConnectionPool singleConnectionPool = new ConnectionPool(dataSource, 1);
+        singleConnectionPool.setAcquireTimeout(Duration.ofMillis(100));
+        CompletableFuture<Void> released = new CompletableFuture<>();
+        CompletableFuture<Connection> leased = CompletableFuture.supplyAsync(() -> {
+            try {
+                Connection connection = singleConnectionPool.acquire();
+                released.join();
+                singleConnectionPool.release(connection);
+                return connection;
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        while (singleConnectionPool.getLeasedCount() == 0) {
+            Thread.onSpinWait();
+        }
+        assertThrows(SQLTimeoutException.class, singleConnectionPool::acquire);
+        released.complete(null);
+        Connection connection = leased.get(5, TimeUnit.SECONDS);
+        // the released connection is reused
+        assertThat(singleConnectionPool.acquire()).isSameAs(connection);
+        singleConnectionPool.release(connection);
+        singleConnectionPool.close();
+    }
+}
@@ -0,0 +1,90 @@
+package com.batherphilippa.peopledb.repository;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class EntityCacheTests {
+
+    @Test
+    public void evictsLeastRecentlyUsedEntry() {
+        EntityCache<String> cache = new EntityCache<>(2);
+        cache.put(1L, "one");
+        cache.put(2L, "two");
+        cache.get(1L);
+        cache.put(3L, "three");
+        assertThat(cache.get(2L).isPresent()).isFalse();
+        assertThat(cache.get(1L).get()).isEqualTo("one");
+        assertThat(cache.get(3L).get()).isEqualTo("three");
+        assertThat(cache.getEvictionCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void boundsTotalWeight() {
+        EntityCache<String> cache = new EntityCache<>(10, String::length, Duration.ZERO, EntityCache.EvictionPolicy.LRU);
+        cache.put(1L, "aaaa");
+        cache.put(2L, "bbbb");
+        cache.put(3L, "cccc");
+        assertThat(cache.getWeight()).isEqualTo(8);
+        assertThat(cache.size()).isEqualTo(2);
+        // never cached, as it could not fit even in an empty cache
+        cache.put(4L, "too long to fit");
+        assertThat(cache.get(4L).isPresent()).isFalse();
+    }
+
+    @Test
+    public void expiresEntriesAfterTtl() {
+        AtomicLong now = new AtomicLong();
+        EntityCache<String> cache = new EntityCache<>(10, s -> 1L, Duration.ofSeconds(5), EntityCache.EvictionPolicy.LRU, now::get);
+        cache.put(1L, "one");
+        now.addAndGet(Duration.ofSeconds(4).toNanos());
+        assertThat(cache.get(1L).isPresent()).isTrue();
+        now.addAndGet(Duration.ofSeconds(2).toNanos());
+        assertThat(cache.get(1L).isPresent()).isFalse();
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void tinyLfuKeepsFrequentlyReadEntries() {
+        EntityCache<String> cache = new EntityCache<>(2, s -> 1L, Duration.ZERO, EntityCache.EvictionPolicy.TINY_LFU);
+        cache.put(1L, "one");
+        cache.put(2L, "two");
+        for (int i = 0; i < 5; i++) {
+            cache.get(1L);
+            cache.get(2L);
+        }
+        // a one-off read of a cold key does not push out the hot set
+        cache.get(3L);
+        cache.put(3L, "three");
+        assertThat(cache.get(1L).isPresent()).isTrue();
+        assertThat(cache.get(2L).isPresent()).isTrue();
+        assertThat(cache.getRejectionCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void countsHitsAndMisses() {
+        EntityCache<String> cache = new EntityCache<>(10);
+        cache.put(1L, "one");
+        cache.get(1L);
+        cache.get(1L);
+        cache.get(1L);
+        cache.get(2L);
+        assertThat(cache.getHitCount()).isEqualTo(3);
+        assertThat(cache.getMissCount()).isEqualTo(1);
+        assertThat(cache.getHitRate()).isEqualTo(0.75);
+    }
+
+    @Test
+    public void dropsPutOfEntryReadBeforeInvalidate() {
+        EntityCache<String> cache = new EntityCache<>(10);
+        long generation = cache.generation(1L);
+        cache.invalidate(1L);
+        cache.put(1L, "stale", generation);
+        assertThat(cache.get(1L).isPresent()).isFalse();
+        cache.put(1L, "fresh", cache.generation(1L));
+        assertThat(cache.get(1L).get()).isEqualTo("fresh");
+    }
+}
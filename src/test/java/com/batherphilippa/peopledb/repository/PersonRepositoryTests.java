@@ -1,9 +1,14 @@
 package com.batherphilippa.peopledb.repository;
 
 import com.batherphilippa.peopledb.domain.Address;
+import com.batherphilippa.peopledb.domain.CrudOperation;
 import com.batherphilippa.peopledb.domain.Person;
 import com.batherphilippa.peopledb.domain.Region;
+import com.batherphilippa.peopledb.exception.IngestException;
+import com.batherphilippa.peopledb.ingest.PersonIngestPipeline;
+import org.h2.jdbcx.JdbcDataSource;
 import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.IOException;
 import java.math.BigDecimal;
@@ -12,21 +17,26 @@ import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.time.*;
-import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Locale;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class PersonRepositoryTests {
 
     private Connection connection;
     private PersonRepository peopleRepo;
 
+    record PersonSummary(long id, String lastName, BigDecimal salary) {}
+
     @BeforeEach
     public void setUp() throws SQLException {
         connection = DriverManager.getConnection("jdbc:h2:~/peopledb".replace("~", System.getProperty("user.home")));
@@ -86,6 +96,80 @@ public class PersonRepositoryTests {
         assertThat(savedPerson.getSpouse().get().getId()).isGreaterThan(0);
     }
 
+    @Test
+    public void canSaveSpousesReferringToEachOther() {
+        Person person = new Person("John", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
+        Person spouse = new Person("Jackie", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
+        person.setSpouse(spouse);
+        spouse.setSpouse(person);
+        long startCount = peopleRepo.getCount();
+        peopleRepo.save(person);
+        assertThat(peopleRepo.getCount()).isEqualTo(startCount + 2);
+        assertThat(peopleRepo.findById(spouse.getId()).get().getSpouse().get().getId()).isEqualTo(person.getId());
+    }
+
+    @Test
+    public void savesEqualAddressesOnce() {
+        List<Person> people = Stream.of("John", "Jake", "Jackson")
+                .map(name -> new Person(name, "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6"))))
+                .toList();
+        people.forEach(person -> person.setHomeAddress(new Address(null, "34 Hawthorn Close", "null", "Chichester", "WS", "PO19 3DZ", "UK", "West Sussex", Region.SOUTH)));
+        peopleRepo.saveAll(people);
+        assertThat(people.stream().map(person -> person.getHomeAddress().get().id()).distinct().count()).isEqualTo(1);
+    }
+
+    @Test
+    public void savesGraphNumberedFromSequences() throws SQLException {
+        JdbcDataSource dataSource = TestDatabase.create();
+        try (Connection connection = dataSource.getConnection()) {
+            PersonRepository peopleRepo = new PersonRepository(connection);
+            SequenceIdGenerator peopleIds = new SequenceIdGenerator("PEOPLE_ID_SEQ");
+            peopleRepo.setIdGenerator(peopleIds);
+            peopleRepo.setAddressIdGenerator(new SequenceIdGenerator("ADDRESSES_ID_SEQ"));
+            RepositoryMetrics metrics = new RepositoryMetrics();
+            peopleRepo.addRepositoryListener(metrics);
+            Person person = new Person("John", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
+            Person spouse = new Person("Jackie", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
+            person.setHomeAddress(new Address(null, "34 Hawthorn Close", "null", "Chichester", "WS", "PO19 3DZ", "UK", "West Sussex", Region.SOUTH));
+            person.setSpouse(spouse);
+            spouse.setSpouse(person);
+            person.addChild(new Person("Sammy", "Smith", ZonedDateTime.of(2006,10,10,15,3,0,0, ZoneId.of("-6"))));
+            person.addChild(new Person("Lucy", "Smith", ZonedDateTime.of(2016,8,5,15,1,0,0, ZoneId.of("-6"))));
+            peopleRepo.save(person);
+
+            assertThat(peopleIds.getReservedBlocks()).isEqualTo(1);
+            assertThat(metrics.get(Person.class, CrudOperation.SAVE).getRowsWritten()).isEqualTo(4);
+            // the children were bound to their parent's ID; only the spouses, referring to each other, are linked after
+            assertThat(metrics.get(Person.class, CrudOperation.UPDATE).getRowsWritten()).isEqualTo(1);
+            Person foundPerson = peopleRepo.findById(person.getId()).get();
+            assertThat(foundPerson.getSpouse().get().getId()).isEqualTo(spouse.getId());
+            assertThat(foundPerson.getHomeAddress().get().id()).isEqualTo(person.getHomeAddress().get().id());
+            assertThat(foundPerson.getChildren()).extracting(Person::getFirstname).containsOnly("Sammy", "Lucy");
+        } finally {
+            TestDatabase.shutdown(dataSource);
+        }
+    }
+
+    @Test
+    public void readsTheIncrementOfTheSequenceInTheNamedSchema() throws SQLException {
+        JdbcDataSource dataSource = TestDatabase.create();
+        try (Connection connection = dataSource.getConnection()) {
+            connection.createStatement().execute("CREATE SCHEMA ARCHIVE");
+            connection.createStatement().execute("CREATE SEQUENCE ARCHIVE.PEOPLE_ID_SEQ START WITH 1000 INCREMENT BY 1");
+            SequenceIdGenerator archiveIds = new SequenceIdGenerator("archive.people_id_seq");
+            assertThat(archiveIds.nextId(connection)).isEqualTo(1000);
+            assertThat(archiveIds.nextId(connection)).isEqualTo(1001);
+            // blocks of one, not the 50 of the public schema's sequence of the same name
+            assertThat(archiveIds.getReservedBlocks()).isEqualTo(2);
+            SequenceIdGenerator publicIds = new SequenceIdGenerator("PUBLIC.PEOPLE_ID_SEQ");
+            publicIds.nextId(connection);
+            publicIds.nextId(connection);
+            assertThat(publicIds.getReservedBlocks()).isEqualTo(1);
+        } finally {
+            TestDatabase.shutdown(dataSource);
+        }
+    }
+
     @Test
     public void canSavePersonWithChildren() throws SQLException {
         Person person = new Person("John", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
@@ -99,6 +183,44 @@ public class PersonRepositoryTests {
                 .forEach(id -> assertThat(id).isGreaterThan(0));
     }
 
+    @Test
+    public void canSaveAllPeople() {
+        Person person1 = new Person("John", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
+        Person person2 = new Person("Jake", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
+        Person person3 = new Person("Jackson", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
+        peopleRepo.setBatchSize(2);
+        List<Person> savedPeople = peopleRepo.saveAll(List.of(person1, person2, person3));
+        assertThat(savedPeople).hasSize(3);
+        assertThat(savedPeople.stream().map(Person::getId).distinct().count()).isEqualTo(3);
+        assertThat(peopleRepo.findById(person3.getId()).get()).isEqualTo(person3);
+    }
+
+    @Test
+    public void canSaveAllPeopleWithAddressAndSpouse() {
+        Address address = new Address(null, "34 Hawthorn Close", "null", "Chichester", "WS", "PO19 3DZ", "UK", "West Sussex", Region.SOUTH);
+        Person person1 = new Person("John", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
+        Person person2 = new Person("Jake", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
+        person1.setHomeAddress(address);
+        person2.setSpouse(new Person("Jackie", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6"))));
+        peopleRepo.saveAll(List.of(person1, person2));
+        Person foundPerson1 = peopleRepo.findById(person1.getId()).get();
+        Person foundPerson2 = peopleRepo.findById(person2.getId()).get();
+        assertThat(foundPerson1.getFirstname()).isEqualTo("John");
+        assertThat(foundPerson1.getHomeAddress().get().county()).isEqualTo("West Sussex");
+        assertThat(foundPerson2.getFirstname()).isEqualTo("Jake");
+        assertThat(foundPerson2.getSpouse().get().getFirstname()).isEqualTo("Jackie");
+    }
+
+    @Test
+    public void canSaveStreamOfPeople() {
+        long startCount = peopleRepo.getCount();
+        peopleRepo.setBatchSize(3);
+        long savedCount = peopleRepo.saveAll(Stream.of("John", "Jake", "Jackson", "Jackie")
+                .map(name -> new Person(name, "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")))));
+        assertThat(savedCount).isEqualTo(4);
+        assertThat(peopleRepo.getCount()).isEqualTo(startCount + 4);
+    }
+
     @Test
     public void canFindPersonById() {
         Person person = new Person("John", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
@@ -107,6 +229,115 @@ public class PersonRepositoryTests {
         assertThat(retrievedPerson).isEqualTo(savedPerson);
     }
 
+    @Test
+    public void identityMapReturnsSameInstance() {
+        Person person = new Person("John", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
+        Long id = peopleRepo.save(person).getId();
+        assertThat(peopleRepo.findById(id).get()).isNotSameAs(peopleRepo.findById(id).get());
+        try (IdentityMap identityMap = IdentityMap.open()) {
+            Person foundPerson = peopleRepo.findById(id).get();
+            assertThat(peopleRepo.findById(id).get()).isSameAs(foundPerson);
+            Person savedPerson = peopleRepo.save(new Person("Jake", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6"))));
+            assertThat(peopleRepo.findById(savedPerson.getId()).get()).isSameAs(savedPerson);
+            assertThat(identityMap.size()).isEqualTo(2);
+        }
+    }
+
+    @Test
+    public void identityMapForgetsDeletedPeople() {
+        try (IdentityMap identityMap = IdentityMap.open()) {
+            Person person1 = peopleRepo.save(new Person("John", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6"))));
+            Person person2 = peopleRepo.save(new Person("Jake", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6"))));
+            Person person3 = peopleRepo.save(new Person("Jackson", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6"))));
+            peopleRepo.deleteById(person1);
+            peopleRepo.deleteById(person2, person3);
+            assertThat(peopleRepo.findById(person1.getId())).isEmpty();
+            assertThat(peopleRepo.findById(person3.getId())).isEmpty();
+            assertThat(identityMap.size()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void entityCacheServesCopiesOfCommittedReads() throws SQLException {
+        JdbcDataSource dataSource = TestDatabase.create();
+        try (Connection connection = dataSource.getConnection()) {
+            PersonRepository peopleRepo = new PersonRepository(connection);
+            EntityCache<Person> personCache = new EntityCache<>(100);
+            peopleRepo.setEntityCache(personCache);
+            Person savedPerson = peopleRepo.save(new Person("John", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6"))));
+            // a write is not cached, as it may yet be rolled back
+            assertThat(personCache.size()).isEqualTo(0);
+            Person found = peopleRepo.findById(savedPerson.getId()).get();
+            Person cached = peopleRepo.findById(savedPerson.getId()).get();
+            assertThat(personCache.getHitCount()).isEqualTo(1);
+            assertThat(cached).isEqualTo(found).isNotSameAs(found);
+            // a change not yet written is not seen by other lookups
+            cached.setSalary(new BigDecimal("40000.00"));
+            assertThat(peopleRepo.findById(savedPerson.getId()).get().getSalary()).isEqualByComparingTo("0");
+            peopleRepo.updateById(cached);
+            assertThat(personCache.size()).isEqualTo(0);
+            assertThat(peopleRepo.findById(savedPerson.getId()).get().getSalary()).isEqualByComparingTo("40000.00");
+
+            // nothing read within a transaction is cached, so a rollback leaves no entry behind
+            personCache.invalidateAll();
+            connection.setAutoCommit(false);
+            cached.setSalary(new BigDecimal("50000.00"));
+            peopleRepo.updateById(cached);
+            peopleRepo.findById(savedPerson.getId());
+            connection.rollback();
+            connection.setAutoCommit(true);
+            assertThat(personCache.size()).isEqualTo(0);
+            assertThat(peopleRepo.findById(savedPerson.getId()).get().getSalary()).isEqualByComparingTo("40000.00");
+
+            peopleRepo.deleteById(savedPerson);
+            assertThat(peopleRepo.findById(savedPerson.getId())).isEmpty();
+        } finally {
+            TestDatabase.shutdown(dataSource);
+        }
+    }
+
+    @Test
+    public void entityCacheForgetsRowsReadWhileAWriteWasUncommitted() throws Exception {
+        JdbcDataSource dataSource = TestDatabase.create();
+        try (ConnectionPool pool = new ConnectionPool(dataSource, 2)) {
+            PersonRepository peopleRepo = new PersonRepository(pool);
+            EntityCache<Person> personCache = new EntityCache<>(100);
+            peopleRepo.setEntityCache(personCache);
+            Person person = peopleRepo.save(new Person("John", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6"))));
+            peopleRepo.inTransaction((connection, statements) -> {
+                person.setSalary(new BigDecimal("40000.00"));
+                peopleRepo.updateById(person);
+                // another connection still reads, and caches, the row as it was before this transaction
+                Person read = CompletableFuture.supplyAsync(() -> peopleRepo.findById(person.getId()).get()).join();
+                assertThat(read.getSalary()).isEqualByComparingTo("0");
+                assertThat(personCache.size()).isEqualTo(1);
+                return null;
+            });
+            assertThat(personCache.size()).isEqualTo(0);
+            assertThat(peopleRepo.findById(person.getId()).get().getSalary()).isEqualByComparingTo("40000.00");
+        } finally {
+            TestDatabase.shutdown(dataSource);
+        }
+    }
+
+    @Test
+    public void entityCacheServesAddresses() throws SQLException {
+        JdbcDataSource dataSource = TestDatabase.create();
+        try (Connection connection = dataSource.getConnection()) {
+            AddressRepository addressRepo = new AddressRepository(connection);
+            EntityCache<Address> addressCache = new EntityCache<>(100);
+            Address address = addressRepo.save(new Address(null, "34 Hawthorn Close", "null", "Chichester", "WS", "PO19 3DZ", "UK", "West Sussex", Region.SOUTH));
+            assertThat(addressRepo.findById(address.id()).get()).isEqualTo(address);
+            addressRepo.setEntityCache(addressCache);
+            addressRepo.findById(address.id());
+            addressRepo.findById(address.id());
+            assertThat(addressCache.getMissCount()).isEqualTo(1);
+            assertThat(addressCache.getHitCount()).isEqualTo(1);
+        } finally {
+            TestDatabase.shutdown(dataSource);
+        }
+    }
+
     @Test
     public void cannotFindPersonById() {
         Optional<Person> retrievedPerson = peopleRepo.findById(-1L);
@@ -171,6 +402,145 @@ public class PersonRepositoryTests {
         assertThat((long) people.size()).isGreaterThanOrEqualTo(3);
     }
 
+    @Test
+    void canStreamAllPeople() {
+        List<Person> savedPeople = peopleRepo.saveAll(List.of(
+                new Person("John", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6"))),
+                new Person("Jake", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6"))),
+                new Person("Jackson", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")))));
+        peopleRepo.setFetchSize(2);
+        try (Stream<Person> people = peopleRepo.streamAll()) {
+            List<Long> ids = people.map(Person::getId).toList();
+            assertThat(ids).containsAll(savedPeople.stream().map(Person::getId).toList());
+            assertThat(ids).isSorted();
+        }
+    }
+
+    @Test
+    void canFindAllPeopleAsProjections() {
+        Person person = new Person("John", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
+        person.setSalary(new BigDecimal("52000.00"));
+        Person savedPerson = peopleRepo.save(person);
+        List<PersonSummary> summaries = peopleRepo.findAll(PersonSummary.class);
+        assertThat(summaries).contains(new PersonSummary(savedPerson.getId(), "Smith", new BigDecimal("52000.00")));
+        try (Stream<PersonSummary> streamedSummaries = peopleRepo.streamAll(PersonSummary.class)) {
+            assertThat(streamedSummaries.toList()).isEqualTo(summaries);
+        }
+    }
+
+    @Test
+    void canPageThroughPeople() {
+        List<Person> savedPeople = peopleRepo.saveAll(Stream.of("John", "Jake", "Jackson", "Jackie", "Jill")
+                .map(name -> new Person(name, "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6"))))
+                .toList());
+        Page<Person> page = peopleRepo.findPage(savedPeople.get(0).getId() - 1, 2);
+        assertThat(page.content()).containsExactly(savedPeople.get(0), savedPeople.get(1));
+        assertThat(page.hasNext()).isTrue();
+        page = peopleRepo.findPage(page.lastId(), 2);
+        assertThat(page.content()).containsExactly(savedPeople.get(2), savedPeople.get(3));
+        page = peopleRepo.findPage(page.lastId(), 2);
+        assertThat(page.content()).containsExactly(savedPeople.get(4));
+        assertThat(page.hasNext()).isFalse();
+    }
+
+    @Test
+    void canFindAllPeopleById() {
+        Address address = new Address(null, "34 Hawthorn Close", "null", "Chichester", "WS", "PO19 3DZ", "UK", "West Sussex", Region.SOUTH);
+        Person person1 = new Person("John", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
+        person1.setHomeAddress(address);
+        person1.setSpouse(new Person("Jackie", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6"))));
+        person1.addChild(new Person("Sammy", "Smith", ZonedDateTime.of(2006,10,10,15,3,0,0, ZoneId.of("-6"))));
+        person1.addChild(new Person("Lucy", "Smith", ZonedDateTime.of(2016,8,5,15,1,0,0, ZoneId.of("-6"))));
+        Person person2 = new Person("Jake", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
+        person2.setBusinessAddress(address);
+        peopleRepo.save(person1);
+        peopleRepo.save(person2);
+        // chunks of one ID per query
+        peopleRepo.setBatchSize(1);
+        List<Person> foundPeople = peopleRepo.findAllById(List.of(person2.getId(), -1L, person1.getId(), person2.getId()));
+        assertThat(foundPeople).containsExactly(person2, person1);
+        Person foundPerson1 = foundPeople.get(1);
+        assertThat(foundPerson1.getHomeAddress().get().county()).isEqualTo("West Sussex");
+        assertThat(foundPerson1.getBusinessAddress()).isEmpty();
+        assertThat(foundPerson1.getSpouse().get().getFirstname()).isEqualTo("Jackie");
+        assertThat(foundPerson1.getChildren().stream().map(Person::getFirstname).collect(Collectors.toSet())).containsOnly("Sammy", "Lucy");
+        assertThat(foundPeople.get(0).getBusinessAddress().get().city()).isEqualTo("Chichester");
+    }
+
+    @Test
+    void readsTheSameGraphWithEveryFetchStrategy() {
+        Person person = new Person("John", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
+        person.setHomeAddress(new Address(null, "34 Hawthorn Close", "null", "Chichester", "WS", "PO19 3DZ", "UK", "West Sussex", Region.SOUTH));
+        person.setSpouse(new Person("Jackie", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6"))));
+        person.addChild(new Person("Sammy", "Smith", ZonedDateTime.of(2006,10,10,15,3,0,0, ZoneId.of("-6"))));
+        person.addChild(new Person("Lucy", "Smith", ZonedDateTime.of(2016,8,5,15,1,0,0, ZoneId.of("-6"))));
+        Long id = peopleRepo.save(person).getId();
+        assertThat(peopleRepo.getFetchStrategy(PersonRepository.Relation.CHILDREN)).isEqualTo(FetchStrategy.BATCH);
+        for (FetchStrategy strategy : FetchStrategy.values()) {
+            for (PersonRepository.Relation relation : PersonRepository.Relation.values()) {
+                peopleRepo.setFetchStrategy(relation, strategy);
+            }
+            Person foundPerson = peopleRepo.findById(id).get();
+            Person multiGotPerson = peopleRepo.findAllById(List.of(id)).get(0);
+            for (Person found : List.of(foundPerson, multiGotPerson)) {
+                assertThat(found.getHomeAddress().get().city()).isEqualTo("Chichester");
+                assertThat(found.getBusinessAddress()).isEmpty();
+                assertThat(found.getSpouse().get().getFirstname()).isEqualTo("Jackie");
+                assertThat(found.getChildren().stream().map(Person::getFirstname).collect(Collectors.toSet())).containsOnly("Sammy", "Lucy");
+            }
+        }
+    }
+
+    @Test
+    void loadsLazyRelationsForAllSiblingsOnFirstAccess() {
+        Person person1 = new Person("John", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
+        person1.setSpouse(new Person("Jackie", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6"))));
+        person1.addChild(new Person("Sammy", "Smith", ZonedDateTime.of(2006,10,10,15,3,0,0, ZoneId.of("-6"))));
+        Person person2 = new Person("Jake", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
+        person2.setSpouse(new Person("Jill", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6"))));
+        peopleRepo.saveAll(List.of(person1, person2));
+        for (PersonRepository.Relation relation : PersonRepository.Relation.values()) {
+            peopleRepo.setFetchStrategy(relation, FetchStrategy.LAZY);
+        }
+        List<Person> foundPeople = peopleRepo.findAllById(List.of(person1.getId(), person2.getId()));
+        StatementCache statements = peopleRepo.getStatementCache();
+        long preparedBefore = statements.getHits() + statements.getMisses();
+        assertThat(foundPeople.get(0).getSpouse().get().getFirstname()).isEqualTo("Jackie");
+        long preparedAfterFirst = statements.getHits() + statements.getMisses();
+        assertThat(preparedAfterFirst).isEqualTo(preparedBefore + 1);
+        // loaded along with the first person's spouse
+        assertThat(foundPeople.get(1).getSpouse().get().getFirstname()).isEqualTo("Jill");
+        assertThat(statements.getHits() + statements.getMisses()).isEqualTo(preparedAfterFirst);
+        assertThat(foundPeople.get(0).getChildren().stream().map(Person::getFirstname).toList()).containsOnly("Sammy");
+        assertThat(foundPeople.get(1).getChildren()).isEmpty();
+        assertThat(foundPeople.get(1).getHomeAddress()).isEmpty();
+    }
+
+    @Test
+    void findAllByIdReturnsKnownInstances() {
+        Person person = new Person("John", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
+        Long id = peopleRepo.save(person).getId();
+        try (IdentityMap identityMap = IdentityMap.open()) {
+            Person foundPerson = peopleRepo.findById(id).get();
+            assertThat(peopleRepo.findAllById(List.of(id)).get(0)).isSameAs(foundPerson);
+        }
+    }
+
+    @Test
+    void mapsEachQueryLayoutByItsOwnColumns() {
+        Person person = new Person("John", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
+        person.setSalary(new BigDecimal("73000.00"));
+        person.setHomeAddress(new Address(null, "34 Hawthorn Close", "null", "Chichester", "WS", "PO19 3DZ", "UK", "West Sussex", Region.SOUTH));
+        Person savedPerson = peopleRepo.save(person);
+        // the join and the single-table page put the same aliases at different positions
+        Person found = peopleRepo.findById(savedPerson.getId()).get();
+        assertThat(found.getHomeAddress().get().city()).isEqualTo("Chichester");
+        Person paged = peopleRepo.findPage(savedPerson.getId() - 1, 1).content().get(0);
+        assertThat(paged.getFirstname()).isEqualTo("John");
+        assertThat(paged.getSalary()).isEqualByComparingTo("73000.00");
+        assertThat(paged.getDob()).isEqualTo(savedPerson.getDob().withZoneSameInstant(ZoneId.of("+0")));
+    }
+
     @Test
     @Disabled
     public void canGetRecordCount() {
@@ -204,6 +574,70 @@ public class PersonRepositoryTests {
         assertThat(endCount).isEqualTo(startCount - 2);
     }
 
+    @Test
+    public void canDeleteAllPeopleByIdInChunks() {
+        List<Long> ids = peopleRepo.saveAll(Stream.of("John", "Jake", "Jackson", "Jackie", "Jill")
+                .map(name -> new Person(name, "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6"))))
+                .toList())
+                .stream()
+                .map(Person::getId)
+                .toList();
+        long startCount = peopleRepo.getCount();
+        peopleRepo.setBatchSize(2);
+        List<Long> deletedIds = new ArrayList<>();
+        peopleRepo.addChangeListener(new EntityChangeListener<>() {
+            @Override
+            public void onDeleted(Person person) {
+                deletedIds.add(person.getId());
+            }
+        });
+        List<Long> idsToDelete = new ArrayList<>(ids);
+        idsToDelete.add(-1L);
+        assertThat(peopleRepo.deleteAllById(idsToDelete)).containsExactly(2, 2, 1);
+        assertThat(peopleRepo.getCount()).isEqualTo(startCount - 5);
+        // the ID without a row is not reported
+        assertThat(deletedIds).isEqualTo(ids);
+        assertThat(peopleRepo.findById(ids.get(0))).isEmpty();
+    }
+
+    @Test
+    public void reusesCachedStatements() {
+        StatementCache statementCache = peopleRepo.getStatementCache();
+        peopleRepo.getCount();
+        long misses = statementCache.getMisses();
+        long hits = statementCache.getHits();
+        peopleRepo.getCount();
+        peopleRepo.getCount();
+        assertThat(statementCache.getMisses()).isEqualTo(misses);
+        assertThat(statementCache.getHits()).isEqualTo(hits + 2);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedStatements() {
+        StatementCache statementCache = peopleRepo.getStatementCache();
+        statementCache.setCapacity(2);
+        peopleRepo.getCount();
+        peopleRepo.findAll();
+        peopleRepo.findPage(null, 1);
+        assertThat(statementCache.size()).isEqualTo(2);
+        assertThat(statementCache.getEvictions()).isGreaterThan(0);
+        // an evicted statement is simply prepared again
+        Person savedPerson = peopleRepo.save(new Person("John", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6"))));
+        assertThat(savedPerson.getId()).isGreaterThan(0);
+    }
+
+    @Test
+    public void keepsStatementsInUseWhenEvicting() {
+        Person person = peopleRepo.save(new Person("John", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6"))));
+        person.setHomeAddress(new Address(null, "34 Hawthorn Close", "null", "Chichester", "WS", "PO19 3DZ", "UK", "West Sussex", Region.SOUTH));
+        StatementCache statementCache = peopleRepo.getStatementCache();
+        statementCache.setCapacity(1);
+        // the address is saved while the upsert's batch is pending, so its statement must not evict the upsert's
+        assertThat(peopleRepo.upsertAll(List.of(person))).hasSize(1);
+        assertThat(peopleRepo.findById(person.getId()).get().getHomeAddress().get().id()).isEqualTo(person.getHomeAddress().get().id());
+        assertThat(statementCache.size()).isEqualTo(1);
+    }
+
     @Test
     public void canUpdatePersonById() {
         Person person = new Person("John", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
@@ -218,27 +652,221 @@ public class PersonRepositoryTests {
         assertThat(savedPerson.getSalary()).isNotEqualByComparingTo(updatedPerson.getSalary());
     }
 
+    @Test
+    public void updatesOnlyChangedColumns() throws SQLException {
+        Long id = peopleRepo.save(new Person("John", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")))).getId();
+        try (IdentityMap identityMap = IdentityMap.open()) {
+            Person foundPerson = peopleRepo.findById(id).get();
+            // changed behind the repository's back; a full update would overwrite it
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("UPDATE PEOPLE SET LAST_NAME='Jones' WHERE ID=" + id);
+            }
+            foundPerson.setSalary(new BigDecimal("1000.00"));
+            peopleRepo.updateById(foundPerson);
+        }
+        Person updatedPerson = peopleRepo.findById(id).get();
+        assertThat(updatedPerson.getSalary()).isEqualByComparingTo("1000.00");
+        assertThat(updatedPerson.getLastname()).isEqualTo("Jones");
+    }
+
+    @Test
+    public void canUpdateAllPeopleInBatches() {
+        List<Person> savedPeople = peopleRepo.saveAll(Stream.of("John", "Jake", "Jackson", "Jackie")
+                .map(name -> new Person(name, "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6"))))
+                .toList());
+        try (IdentityMap identityMap = IdentityMap.open()) {
+            List<Person> foundPeople = peopleRepo.findAllById(savedPeople.stream().map(Person::getId).toList());
+            foundPeople.get(0).setSalary(new BigDecimal("1000.00"));
+            foundPeople.get(1).setSalary(new BigDecimal("2000.00"));
+            foundPeople.get(2).setSalary(new BigDecimal("3000.00"));
+            // unchanged, so not written
+            foundPeople.get(3).setSalary(foundPeople.get(3).getSalary());
+            peopleRepo.setBatchSize(2);
+            assertThat(peopleRepo.updateAll(foundPeople)).isEqualTo(3);
+            // snapshots now match, so nothing is left to write
+            assertThat(peopleRepo.updateAll(foundPeople)).isEqualTo(0);
+        }
+        assertThat(peopleRepo.findAllById(savedPeople.stream().map(Person::getId).toList())
+                .stream()
+                .map(Person::getSalary)
+                .map(BigDecimal::intValue)
+                .toList()).containsExactly(1000, 2000, 3000, 0);
+    }
+
+    @Test
+    public void recordsMetricsAndSlowQueries() {
+        RepositoryMetrics metrics = new RepositoryMetrics();
+        SlowQueryLog slowQueryLog = new SlowQueryLog(Duration.ZERO, true, 10);
+        peopleRepo.addRepositoryListener(metrics);
+        peopleRepo.addRepositoryListener(slowQueryLog);
+        peopleRepo.setBatchSize(2);
+        List<Person> savedPeople = peopleRepo.saveAll(Stream.of("John", "Jake", "Jackson")
+                .map(name -> new Person(name, "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6"))))
+                .toList());
+        peopleRepo.findById(savedPeople.get(0).getId());
+
+        RepositoryMetrics.OperationMetrics saves = metrics.get(Person.class, CrudOperation.SAVE);
+        assertThat(saves.getStatementCount()).isEqualTo(2);
+        assertThat(saves.getRowsWritten()).isEqualTo(3);
+        assertThat(saves.getBatchSizes().getMax()).isEqualTo(2);
+        RepositoryMetrics.OperationMetrics finds = metrics.get(Person.class, CrudOperation.FIND_ONE);
+        assertThat(finds.getStatementCount()).isEqualTo(1);
+        assertThat(finds.getLatencyNanos().getValueAtPercentile(99)).isGreaterThan(0);
+        SlowQueryLog.SlowQuery slowFind = slowQueryLog.getEntries().stream()
+                .filter(entry -> entry.operationType() == CrudOperation.FIND_ONE)
+                .findFirst().get();
+        assertThat(slowFind.bindValues()).contains(savedPeople.get(0).getId().toString());
+        assertThat(slowFind.plan()).contains("PEOPLE");
+    }
+
+    @Test
+    public void maintainsAggregatesIncrementally() {
+        PersonAggregates aggregates = peopleRepo.maintainAggregates();
+        long startCount = peopleRepo.getCount();
+        BigDecimal startSouthSalary = aggregates.getTotalSalary(Region.SOUTH);
+        Person person = new Person("John", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
+        person.setHomeAddress(new Address(null, "34 Hawthorn Close", "null", "Chichester", "WS", "PO19 3DZ", "UK", "West Sussex", Region.SOUTH));
+        person.setSalary(new BigDecimal("50000.00"));
+        peopleRepo.save(person);
+        assertThat(peopleRepo.getCount()).isEqualTo(startCount + 1);
+        assertThat(aggregates.getTotalSalary(Region.SOUTH)).isEqualByComparingTo(startSouthSalary.add(new BigDecimal("50000.00")));
+        try (IdentityMap identityMap = IdentityMap.open()) {
+            Person foundPerson = peopleRepo.findById(person.getId()).get();
+            foundPerson.setSalary(new BigDecimal("60000.00"));
+            peopleRepo.updateById(foundPerson);
+        }
+        // applied from the snapshot's salary, so nothing is left for a reconcile to correct
+        assertThat(aggregates.reconcile()).isFalse();
+        assertThat(aggregates.getTotalSalary(Region.SOUTH)).isEqualByComparingTo(startSouthSalary.add(new BigDecimal("60000.00")));
+        // outside an identity map the update reads back the earlier salary, so again nothing is left to correct
+        person.setSalary(new BigDecimal("70000.00"));
+        peopleRepo.updateById(person);
+        assertThat(aggregates.reconcile()).isFalse();
+        assertThat(aggregates.getTotalSalary(Region.SOUTH)).isEqualByComparingTo(startSouthSalary.add(new BigDecimal("70000.00")));
+        peopleRepo.deleteById(person);
+        assertThat(peopleRepo.getCount()).isEqualTo(startCount);
+        assertThat(aggregates.getTotalSalary(Region.SOUTH)).isEqualByComparingTo(startSouthSalary);
+        // a repository without aggregates counts by query
+        assertThat(new PersonRepository(connection).getCount()).isEqualTo(startCount);
+    }
+
+    @Test
+    public void canUpsertPerson() {
+        Person person = new Person("John", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
+        // no ID yet, so saved
+        Long id = peopleRepo.upsert(person).getId();
+        assertThat(id).isGreaterThan(0);
+        long startCount = peopleRepo.getCount();
+        Person changedPerson = new Person(id, "John", "Jones", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
+        peopleRepo.upsert(changedPerson);
+        assertThat(peopleRepo.getCount()).isEqualTo(startCount);
+        assertThat(peopleRepo.findById(id).get().getLastname()).isEqualTo("Jones");
+    }
+
+    @Test
+    public void canUpsertAddress() {
+        AddressRepository addressRepo = new AddressRepository(connection);
+        Address address = addressRepo.save(new Address(null, "34 Hawthorn Close", "null", "Chichester", "WS", "PO19 3DZ", "UK", "West Sussex", Region.SOUTH));
+        addressRepo.upsert(new Address(address.id(), "34 Hawthorn Close", "null", "Bognor Regis", "WS", "PO21 1AA", "UK", "West Sussex", Region.SOUTH));
+        assertThat(addressRepo.findById(address.id()).get().city()).isEqualTo("Bognor Regis");
+    }
+
+    @Test
+    public void canUpsertAllPeople() {
+        List<Person> savedPeople = peopleRepo.saveAll(Stream.of("John", "Jake", "Jackson")
+                .map(name -> new Person(name, "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6"))))
+                .toList());
+        long startCount = peopleRepo.getCount();
+        List<Person> changedPeople = savedPeople.stream()
+                .map(person -> new Person(person.getId(), person.getFirstname(), "Jones", person.getDob()))
+                .collect(Collectors.toList());
+        changedPeople.add(new Person("Jackie", "Jones", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6"))));
+        peopleRepo.setBatchSize(2);
+        List<Person> upsertedPeople = peopleRepo.upsertAll(changedPeople);
+        assertThat(upsertedPeople).hasSize(4);
+        assertThat(peopleRepo.getCount()).isEqualTo(startCount + 1);
+        assertThat(peopleRepo.findAllById(upsertedPeople.stream().map(Person::getId).toList())
+                .stream()
+                .map(Person::getLastname)
+                .toList()).containsOnly("Jones");
+    }
+
+    @Test
+    public void unitOfWorkWritesEachKindOfChangeAsOneBatch() {
+        Person existing = peopleRepo.save(new Person("Jake", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6"))));
+        Person leaving = peopleRepo.save(new Person("Jackson", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6"))));
+        RepositoryMetrics metrics = new RepositoryMetrics();
+        peopleRepo.addRepositoryListener(metrics);
+        Address address = new Address(null, "34 Hawthorn Close", "null", "Chichester", "WS", "PO19 3DZ", "UK", "West Sussex", Region.SOUTH);
+        Person person = new Person("John", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
+        Person spouse = new Person("Jackie", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
+        person.setHomeAddress(address);
+        spouse.setHomeAddress(address);
+        person.setSpouse(spouse);
+        spouse.setSpouse(person);
+        person.addChild(new Person("Sammy", "Smith", ZonedDateTime.of(2006,10,10,15,3,0,0, ZoneId.of("-6"))));
+        try (UnitOfWork unitOfWork = UnitOfWork.begin(peopleRepo)) {
+            Person dirty = peopleRepo.findById(existing.getId()).get();
+            dirty.setSalary(new BigDecimal("40000.00"));
+            unitOfWork.registerNew(person);
+            unitOfWork.registerDirty(dirty);
+            unitOfWork.registerDeleted(leaving);
+            unitOfWork.flush();
+        }
+
+        RepositoryMetrics.OperationMetrics saves = metrics.get(Person.class, CrudOperation.SAVE);
+        assertThat(saves.getStatementCount()).isEqualTo(1);
+        assertThat(saves.getRowsWritten()).isEqualTo(3);
+        // the spouse and parent links, then the salary
+        assertThat(metrics.get(Person.class, CrudOperation.UPDATE).getStatementCount()).isEqualTo(2);
+        assertThat(metrics.get(Person.class, CrudOperation.DELETE_MANY).getStatementCount()).isEqualTo(1);
+        Person foundPerson = peopleRepo.findById(person.getId()).get();
+        Person foundSpouse = peopleRepo.findById(spouse.getId()).get();
+        assertThat(foundPerson.getSpouse().get().getId()).isEqualTo(spouse.getId());
+        assertThat(foundSpouse.getSpouse().get().getId()).isEqualTo(person.getId());
+        assertThat(foundSpouse.getHomeAddress().get().id()).isEqualTo(foundPerson.getHomeAddress().get().id());
+        assertThat(foundPerson.getChildren()).extracting(Person::getFirstname).containsExactly("Sammy");
+        assertThat(peopleRepo.findById(existing.getId()).get().getSalary()).isEqualByComparingTo("40000.00");
+        assertThat(peopleRepo.findById(leaving.getId())).isEmpty();
+    }
+
+    @Test
+    public void ingestRollsBackChunkTheRepositoryFailsToWrite(@TempDir Path tempDir) throws SQLException, IOException {
+        List<String> lines = new ArrayList<>(List.of("header"));
+        for (int i = 1; i <= 12; i++) {
+            String[] values = new String[30];
+            Arrays.fill(values, "x");
+            // too long for FIRST_NAME, so the third chunk fails in the database
+            values[2] = i == 10 ? "First".repeat(60) : "First" + i;
+            values[4] = "Last" + i;
+            values[10] = "11/" + i + "/1980";
+            values[11] = String.format("03:15:%02d PM", i);
+            values[25] = String.valueOf(1000 + i);
+            lines.add(String.join(",", values));
+        }
+        Path csvFile = Files.write(tempDir.resolve("people.csv"), lines);
+        Path checkpointFile = tempDir.resolve("people.checkpoint");
+        JdbcDataSource dataSource = TestDatabase.create();
+        try (Connection connection = dataSource.getConnection()) {
+            PersonRepository peopleRepo = new PersonRepository(connection);
+            PersonIngestPipeline pipeline = new PersonIngestPipeline(connection, peopleRepo::saveAllOrThrow);
+            pipeline.setChunkSize(4);
+            pipeline.setCommitInterval(8);
+            assertThrows(IngestException.class, () -> pipeline.ingest(csvFile, checkpointFile));
+            // only the two chunks committed before the failure were loaded, and the checkpoint resumes after them
+            assertThat(peopleRepo.getCount()).isEqualTo(8);
+            assertThat(Files.exists(checkpointFile)).isTrue();
+        } finally {
+            TestDatabase.shutdown(dataSource);
+        }
+    }
+
     @Test
     @Disabled
-    public void loadData() throws IOException, SQLException {
-        Files.lines(Path.of("C://Users/bathe/downloads/Hr5m.csv"))
-                .skip(1)
-//                .limit(20)
-                // convert into a stream of String arrays
-                .map(line -> line.split(","))
-                // convert into Person objects
-                .map(strArr -> {
-                    LocalDate dob = LocalDate.parse(strArr[10], DateTimeFormatter.ofPattern("M/d/yyyy"));
-                    LocalTime tob = LocalTime.parse(strArr[11], DateTimeFormatter.ofPattern("hh:mm:ss a", Locale.US));
-                    LocalDateTime dtob = LocalDateTime.of(dob, tob);
-                    ZonedDateTime zdtob = ZonedDateTime.of(dtob, ZoneId.of("+0"));
-                    Person person = new Person(strArr[2], strArr[4], zdtob);
-                    person.setEmail(strArr[6]);
-                    person.setSalary(new BigDecimal(strArr[25]));
-                    return person;
-                })
-                .forEach(peopleRepo::save); // p -> personRepo.save(p)
-        connection.commit();
+    public void loadData() throws IOException {
+        PersonIngestPipeline pipeline = new PersonIngestPipeline(connection, peopleRepo::saveAllOrThrow);
+        // re-running after a failure resumes from the last commit recorded in the checkpoint
+        pipeline.ingest(Path.of("C://Users/bathe/downloads/Hr5m.csv"), Path.of("C://Users/bathe/downloads/Hr5m.checkpoint"));
     }
 
     @Test
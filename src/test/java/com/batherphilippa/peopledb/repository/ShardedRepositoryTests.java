@@ -0,0 +1,174 @@
+package com.batherphilippa.peopledb.repository;
+
+import com.batherphilippa.peopledb.domain.Person;
+import com.batherphilippa.peopledb.exception.DataException;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ShardedRepositoryTests {
+
+    private static final int SHARDS = 3;
+
+    private final List<JdbcDataSource> dataSources = new ArrayList<>();
+    private final List<ConnectionPool> pools = new ArrayList<>();
+    private final List<PersonRepository> shards = new ArrayList<>();
+    private ShardedRepository<Person> peopleRepo;
+
+    @BeforeEach
+    public void setUp() throws SQLException {
+        for (int i = 0; i < SHARDS; i++) {
+            JdbcDataSource dataSource = TestDatabase.create();
+            ConnectionPool pool = new ConnectionPool(dataSource, 2);
+            dataSources.add(dataSource);
+            pools.add(pool);
+            shards.add(new PersonRepository(pool));
+        }
+        peopleRepo = new ShardedRepository<>(shards, "PEOPLE_ID_SEQ");
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        peopleRepo.close();
+        for (int i = 0; i < SHARDS; i++) {
+            pools.get(i).close();
+            TestDatabase.shutdown(dataSources.get(i));
+        }
+    }
+
+    private static List<Person> newPeople(int count) {
+        return IntStream.range(0, count)
+                .mapToObj(i -> new Person("John" + i, "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6"))))
+                .toList();
+    }
+
+    @Test
+    public void routesByTheShardEncodedInTheId() {
+        List<Person> savedPeople = peopleRepo.saveAll(newPeople(30));
+        for (Person person : savedPeople) {
+            int shard = peopleRepo.shardOf(person.getId());
+            assertThat(shards.get(shard).findById(person.getId())).contains(person);
+            assertThat(peopleRepo.findById(person.getId())).contains(person);
+        }
+        shards.forEach(shard -> assertThat(shard.getCount()).isEqualTo(10));
+        assertThat(peopleRepo.getCount()).isEqualTo(30);
+
+        Person person = savedPeople.get(0);
+        person.setSalary(new BigDecimal("50000.00"));
+        peopleRepo.updateById(person);
+        assertThat(peopleRepo.findById(person.getId()).get().getSalary()).isEqualByComparingTo("50000.00");
+        peopleRepo.deleteById(person);
+        assertThat(peopleRepo.findById(person.getId())).isEmpty();
+        assertThat(peopleRepo.getCount()).isEqualTo(29);
+    }
+
+    @Test
+    public void mergesScansAndPagesInIdOrder() {
+        List<Long> ids = peopleRepo.saveAll(newPeople(600)).stream()
+                .map(Person::getId)
+                .sorted()
+                .toList();
+        try (Stream<Person> people = peopleRepo.streamAll()) {
+            assertThat(people.map(Person::getId).toList()).isEqualTo(ids);
+        }
+        // closing a stream part way stops the shards' reads
+        try (Stream<Person> people = peopleRepo.streamAll()) {
+            assertThat(people.limit(5).map(Person::getId).toList()).isEqualTo(ids.subList(0, 5));
+        }
+
+        List<Long> pagedIds = new ArrayList<>();
+        Page<Person> page = peopleRepo.findPage(null, 70);
+        pagedIds.addAll(page.content().stream().map(Person::getId).toList());
+        while (page.hasNext()) {
+            page = peopleRepo.findPage(page.lastId(), 70);
+            pagedIds.addAll(page.content().stream().map(Person::getId).toList());
+        }
+        assertThat(pagedIds).isEqualTo(ids);
+    }
+
+    @Test
+    public void findsTheLowestIdsAcrossUnevenShards() {
+        // one family of 50 fills a shard of its own, so the lowest IDs are not 20 from each shard
+        Person father = new Person("John", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
+        newPeople(49).forEach(father::addChild);
+        List<Person> people = new ArrayList<>(List.of(father));
+        people.addAll(father.getChildren());
+        people.addAll(newPeople(30));
+        List<Long> ids = peopleRepo.saveAll(people).stream()
+                .map(Person::getId)
+                .sorted()
+                .toList();
+        assertThat(peopleRepo.findAll().stream().map(Person::getId).toList()).isEqualTo(ids.subList(0, 20 * SHARDS));
+    }
+
+    @Test
+    public void savesRelatedPeopleToOneShard() {
+        List<Person> husbands = new ArrayList<>();
+        List<Person> people = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            Person husband = new Person("John" + i, "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
+            Person wife = new Person("Jackie" + i, "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
+            husband.setSpouse(wife);
+            wife.setSpouse(husband);
+            husband.addChild(new Person("Sammy" + i, "Smith", ZonedDateTime.of(2006,10,10,15,3,0,0, ZoneId.of("-6"))));
+            husbands.add(husband);
+            // given one by one, so dealing people out in turn would split every family
+            people.add(husband);
+            people.add(wife);
+            people.addAll(husband.getChildren());
+        }
+        peopleRepo.saveAll(people);
+        assertThat(peopleRepo.getCount()).isEqualTo(18);
+        for (Person husband : husbands) {
+            int shard = peopleRepo.shardOf(husband.getId());
+            assertThat(peopleRepo.shardOf(husband.getSpouse().get().getId())).isEqualTo(shard);
+            husband.getChildren().forEach(child -> assertThat(peopleRepo.shardOf(child.getId())).isEqualTo(shard));
+            Person foundHusband = peopleRepo.findById(husband.getId()).get();
+            assertThat(foundHusband.getSpouse().get().getId()).isEqualTo(husband.getSpouse().get().getId());
+            assertThat(foundHusband.getChildren()).hasSize(1);
+        }
+        // the families are still spread over the shards
+        shards.forEach(shard -> assertThat(shard.getCount()).isEqualTo(6));
+    }
+
+    @Test
+    public void savesANewPersonToTheShardOfTheirSpouse() {
+        // spread over the shards first, so the spouse's shard is not simply the next in turn
+        peopleRepo.saveAll(newPeople(4));
+        for (int i = 0; i < SHARDS; i++) {
+            Person husband = peopleRepo.save(new Person("John", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6"))));
+            Person wife = new Person("Jackie", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
+            wife.setSpouse(husband);
+            Person savedWife = peopleRepo.save(wife);
+            assertThat(savedWife).isNotNull();
+            assertThat(peopleRepo.shardOf(savedWife.getId())).isEqualTo(peopleRepo.shardOf(husband.getId()));
+            assertThat(peopleRepo.findById(savedWife.getId()).get().getSpouse().get().getId()).isEqualTo(husband.getId());
+        }
+    }
+
+    @Test
+    public void failsReadsWhenAShardFails() throws SQLException {
+        peopleRepo.saveAll(newPeople(30));
+        // the shard's connections now reach a new, empty database
+        TestDatabase.shutdown(dataSources.get(1));
+        assertThrows(DataException.class, peopleRepo::findAll);
+        assertThrows(DataException.class, peopleRepo::getCount);
+        assertThrows(DataException.class, () -> peopleRepo.findPage(null, 10));
+        try (Stream<Person> people = peopleRepo.streamAll()) {
+            assertThrows(DataException.class, people::toList);
+        }
+    }
+}
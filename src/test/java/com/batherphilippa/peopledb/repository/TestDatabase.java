@@ -0,0 +1,42 @@
+package com.batherphilippa.peopledb.repository;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.h2.tools.RunScript;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.UUID;
+
+/**
+ * Private in-memory databases for tests that commit, so they leave the shared peopledb database alone.
+ */
+final class TestDatabase {
+
+    private TestDatabase() {}
+
+    /**
+     * @return A data source for a new, empty in-memory database with the PEOPLE and ADDRESSES tables.
+     * The database lives until shutdown is called.
+     */
+    static JdbcDataSource create() throws SQLException {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+        try (Connection connection = dataSource.getConnection();
+             Reader schema = new InputStreamReader(TestDatabase.class.getResourceAsStream("/schema.sql"), StandardCharsets.UTF_8)) {
+            RunScript.execute(connection, schema);
+        } catch (IOException e) {
+            throw new SQLException("Unable to read schema", e);
+        }
+        return dataSource;
+    }
+
+    static void shutdown(JdbcDataSource dataSource) throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.createStatement().execute("SHUTDOWN");
+        }
+    }
+}
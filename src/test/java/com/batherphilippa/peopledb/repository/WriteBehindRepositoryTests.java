@@ -0,0 +1,117 @@
+package com.batherphilippa.peopledb.repository;
+
+import com.batherphilippa.peopledb.domain.CrudOperation;
+import com.batherphilippa.peopledb.domain.Person;
+import org.h2.jdbcx.JdbcDataSource;
+import com.batherphilippa.peopledb.exception.DataException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class WriteBehindRepositoryTests {
+
+    private JdbcDataSource dataSource;
+    private ConnectionPool pool;
+    private PersonRepository peopleRepo;
+
+    @BeforeEach
+    public void setUp() throws SQLException {
+        dataSource = TestDatabase.create();
+        pool = new ConnectionPool(dataSource, 4);
+        peopleRepo = new PersonRepository(pool);
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        pool.close();
+        TestDatabase.shutdown(dataSource);
+    }
+
+    @Test
+    public void commitsQueuedSavesInGroups() throws Exception {
+        RepositoryMetrics metrics = new RepositoryMetrics();
+        peopleRepo.addRepositoryListener(metrics);
+        try (WriteBehindRepository<Person> writeBehindRepo = new WriteBehindRepository<>(peopleRepo, 50, 100, Duration.ofMillis(50))) {
+            List<CompletableFuture<Person>> saves = IntStream.range(0, 500)
+                    .mapToObj(i -> writeBehindRepo.saveAsync(new Person("John" + i, "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")))))
+                    .toList();
+            CompletableFuture.allOf(saves.toArray(CompletableFuture[]::new)).get(30, TimeUnit.SECONDS);
+            assertThat(saves.stream().map(save -> save.join().getId()).distinct().count()).isEqualTo(500);
+        }
+        assertThat(peopleRepo.getCount()).isEqualTo(500);
+        // the queue holds 50, so the writer saw at most that many at a time, but never one statement per save
+        assertThat(metrics.get(Person.class, CrudOperation.SAVE).getStatementCount()).isLessThan(500);
+        assertThat(pool.getLeasedCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void coalescesWritesToTheSameId() throws Exception {
+        Person person = peopleRepo.save(new Person("John", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6"))));
+        Person leaving = peopleRepo.save(new Person("Jake", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6"))));
+        RepositoryMetrics metrics = new RepositoryMetrics();
+        peopleRepo.addRepositoryListener(metrics);
+        CompletableFuture<Person> lastUpdate;
+        CompletableFuture<Void> delete;
+        // a long delay and large group, so the writes below are committed together
+        try (WriteBehindRepository<Person> writeBehindRepo = new WriteBehindRepository<>(peopleRepo, 100, 100, Duration.ofSeconds(1))) {
+            for (int salary = 1; salary < 10; salary++) {
+                person.setSalary(BigDecimal.valueOf(salary * 1000L));
+                writeBehindRepo.updateByIdAsync(person);
+            }
+            person.setSalary(new BigDecimal("50000.00"));
+            lastUpdate = writeBehindRepo.updateByIdAsync(person);
+            delete = writeBehindRepo.deleteByIdAsync(leaving);
+            writeBehindRepo.updateByIdAsync(leaving);
+        }
+        assertThat(lastUpdate.get(5, TimeUnit.SECONDS)).isSameAs(person);
+        delete.get(5, TimeUnit.SECONDS);
+        assertThat(metrics.get(Person.class, CrudOperation.UPDATE).getRowsWritten()).isEqualTo(1);
+        assertThat(peopleRepo.findById(person.getId()).get().getSalary()).isEqualByComparingTo("50000.00");
+        assertThat(peopleRepo.findById(leaving.getId())).isEmpty();
+    }
+
+    @Test
+    public void failsEveryWriteOfAGroupThatRollsBack() {
+        Person person = peopleRepo.save(new Person("John", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6"))));
+        Person husband = new Person("Jake", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
+        Person wife = new Person("Jackie", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")));
+        husband.setSpouse(wife);
+        wife.setSpouse(husband);
+        peopleRepo.save(husband);
+        long startCount = peopleRepo.getCount();
+        List<CompletableFuture<?>> writes = new ArrayList<>();
+        // committed together, so the delete's foreign key violation rolls back the whole group
+        try (WriteBehindRepository<Person> writeBehindRepo = new WriteBehindRepository<>(peopleRepo, 100, 100, Duration.ofSeconds(1))) {
+            for (int salary = 1; salary < 5; salary++) {
+                person.setSalary(BigDecimal.valueOf(salary * 1000L));
+                writes.add(writeBehindRepo.updateByIdAsync(person));
+            }
+            writes.add(writeBehindRepo.saveAsync(new Person("Jill", "Smith", ZonedDateTime.of(1980,11,15,15,15,0,0, ZoneId.of("-6")))));
+            writes.add(writeBehindRepo.deleteByIdAsync(wife));
+        }
+        // the coalesced updates fail with the write that replaced them
+        for (CompletableFuture<?> write : writes) {
+            ExecutionException failure = assertThrows(ExecutionException.class, () -> write.get(5, TimeUnit.SECONDS));
+            assertThat(failure.getCause()).isInstanceOf(DataException.class);
+        }
+        assertThat(peopleRepo.getCount()).isEqualTo(startCount);
+        assertThat(peopleRepo.findById(person.getId()).get().getSalary()).isEqualByComparingTo("0");
+        assertThat(peopleRepo.findById(wife.getId())).isPresent();
+        assertThat(pool.getLeasedCount()).isEqualTo(0);
+    }
+}
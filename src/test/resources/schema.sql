@@ -0,0 +1,28 @@
+CREATE TABLE IF NOT EXISTS ADDRESSES (
+    ID BIGINT AUTO_INCREMENT PRIMARY KEY,
+    STREET_ADDRESS VARCHAR(255),
+    ADDRESS_2 VARCHAR(255),
+    CITY VARCHAR(255),
+    STATE VARCHAR(255),
+    POSTCODE VARCHAR(255),
+    COUNTY VARCHAR(255),
+    REGION VARCHAR(255),
+    COUNTRY VARCHAR(255)
+);
+
+CREATE TABLE IF NOT EXISTS PEOPLE (
+    ID BIGINT AUTO_INCREMENT PRIMARY KEY,
+    FIRST_NAME VARCHAR(255),
+    LAST_NAME VARCHAR(255),
+    DOB TIMESTAMP,
+    EMAIL VARCHAR(255),
+    SALARY DECIMAL(15, 2),
+    HOME_ADDRESS BIGINT REFERENCES ADDRESSES(ID),
+    BUSINESS_ADDRESS BIGINT REFERENCES ADDRESSES(ID),
+    SPOUSE BIGINT REFERENCES PEOPLE(ID),
+    PARENT_ID BIGINT REFERENCES PEOPLE(ID)
+);
+
+CREATE SEQUENCE IF NOT EXISTS ADDRESSES_ID_SEQ START WITH 1 INCREMENT BY 50;
+
+CREATE SEQUENCE IF NOT EXISTS PEOPLE_ID_SEQ START WITH 1 INCREMENT BY 50;